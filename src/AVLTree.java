@@ -1,7 +1,19 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * AVLTree
  * An implementation of a AVL Tree with distinct integer keys and info
+ * (any int is a valid key: virtual nodes are told apart by isRealNode, not by key -1)
  */
 
 public class AVLTree {
@@ -9,9 +21,419 @@ public class AVLTree {
 	private IAVLNode root ; //the root of the AVLTree
 	private IAVLNode minimum ; // the node with the minimal key 
 	private IAVLNode maximum ; // the node with the maximal key
+	private final Augmentation<Object>[] augmentations; // kept in every node, next to size and sum
+	private AVLTreeMetrics metrics; // null unless enableMetrics was called
+	private HotKeyCache cache; // null unless enableCache was called
+	
+	// the single virtual node which stands for every missing child (and for the root of an empty tree)
+	private static final IAVLNode VIRTUAL_NODE = new VirtualNode();
+	private static final Object[] NO_AGGREGATES = new Object[0]; // shared by the nodes of trees without augmentations
+	
+	// the parallel operations handle subtrees of fewer nodes than this in a single task
+	private static final int PARALLEL_THRESHOLD = 1 << 13;
+	
+	private static final int UNION = 0, INTERSECTION = 1, DIFFERENCE = 2; // the set operations
+	
+	private static final int SNAPSHOT_MAGIC = 0x4156_4C53; // "AVLS", see writeTo
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_HEADER = 4 + 4 + 4 + 8; // magic, version, size, key bytes
 	
 	public AVLTree() {
-		this.root = buildVirtualNode(null); // virtual node as place-holder
+		this(new Augmentation<?>[0]);
+	}
+	
+	/**
+	 * public AVLTree(Augmentation<?>... augmentations)
+	 *
+	 * creates an empty tree which keeps the given aggregates of every subtree up to date
+	 * through inserts, deletes and rotations. they are read with aggregate and fold.
+	 * every insert or delete calls combine O(log n) times per augmentation.
+	 * join, split and the set operations keep the augmentations of their input trees
+	 * (which must be the same); fromSorted and fromUnsorted build trees without any.
+	 */
+	@SuppressWarnings("unchecked")
+	public AVLTree(Augmentation<?>... augmentations) {
+		this.root = VIRTUAL_NODE; // virtual node as place-holder
+		this.augmentations = (Augmentation<Object>[])augmentations.clone();
+	}
+	
+	/**
+	 * public AVLTreeMetrics enableMetrics()
+	 *
+	 * starts keeping the counters and distributions of AVLTreeMetrics for this tree
+	 * (or keeps the ones already kept) and returns them. they are live: read them,
+	 * take a snapshot or register them with JMX. until this is called, and after
+	 * disableMetrics, the tree only checks a null field per operation.
+	 * note that with metrics, search is no longer free of writes: every search updates
+	 * the shared counters and histograms. a tree which is only searched by several threads
+	 * at once (say under the read lock of a ReadWriteLock) is safe without metrics, but with
+	 * them the threads race on those fields, and the counts get lost or torn. such a tree
+	 * needs an exclusive lock around search as well, or no metrics.
+	 */
+	public AVLTreeMetrics enableMetrics() {
+		if (metrics == null)
+			metrics = new AVLTreeMetrics(this);
+		return metrics;
+	}
+	
+	/**
+	 * public void disableMetrics()
+	 *
+	 * stops keeping metrics; those returned by enableMetrics keep their last values
+	 */
+	public void disableMetrics() {
+		metrics = null;
+	}
+	
+	/**
+	 * public AVLTreeMetrics metrics()
+	 *
+	 * Returns the metrics of this tree, or null if they are not enabled
+	 */
+	public AVLTreeMetrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * public HotKeyCache enableCache(int capacity)
+	 *
+	 * puts a cache of (at least) capacity keys in front of search, replacing the current one
+	 * if there is one, and returns it (for its hit rate). search caches every key it finds,
+	 * evicting rarely hit keys when the cache is full; delete removes the key from the cache,
+	 * and split, join and the set operations clear it. for skewed lookups, where a few keys
+	 * take most of the searches, a cache of about as many keys saves most descents.
+	 * note that with a cache, search is no longer free of writes: a hit sets a referenced
+	 * bit and counts, a miss counts and may put the key into the cache, evicting another.
+	 * a tree which is only searched by several threads at once (say under the read lock of
+	 * a ReadWriteLock) is safe without a cache, but with one the threads race on the table,
+	 * and one of them can pair a key with another key's info and return it.
+	 * such a tree needs an exclusive lock around search as well, or no cache.
+	 * throws IllegalArgumentException if capacity is not in 1 .. 2^29
+	 */
+	public HotKeyCache enableCache(int capacity) {
+		cache = new HotKeyCache(capacity);
+		return cache;
+	}
+	
+	/**
+	 * public void disableCache()
+	 *
+	 * removes the cache in front of search
+	 */
+	public void disableCache() {
+		cache = null;
+	}
+	
+	/**
+	 * public static AVLTree fromSorted(int[] keys, String[] infos)
+	 *
+	 * builds a perfectly balanced tree of the items (keys[j], infos[j]) in O(n),
+	 * without any search or rotation.
+	 * throws IllegalArgumentException if the keys are not strictly increasing
+	 * or if the arrays differ in length.
+	 */
+	public static AVLTree fromSorted(int[] keys, String[] infos) {
+		checkSorted(keys, infos);
+		AVLTree tree = new AVLTree();
+		tree.setRoot(tree.buildBalanced(keys, infos, 0, keys.length));
+		return tree;
+	}
+	
+	/**
+	 * public static AVLTree fromSorted(int[] keys, String[] infos, ForkJoinPool pool)
+	 *
+	 * like fromSorted(keys, infos), building the two halves of every range in parallel on pool.
+	 * the result has the same shape as the one built by a single thread.
+	 */
+	public static AVLTree fromSorted(int[] keys, String[] infos, ForkJoinPool pool) {
+		checkSorted(keys, infos);
+		AVLTree tree = new AVLTree();
+		tree.setRoot(pool.invoke(tree.new BuildTask(keys, infos, 0, keys.length)));
+		return tree;
+	}
+	
+	private static void checkSorted(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + infos.length + " infos");
+		checkIncreasing(keys);
+	}
+	
+	private static void checkIncreasing(int[] keys) {
+		for (int j = 1; j < keys.length; j++) {
+			if (keys[j - 1] >= keys[j])
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + j);
+		}
+	}
+	
+	/**
+	 * public static AVLTree fromUnsorted(int[] keys, String[] infos)
+	 *
+	 * like fromSorted, for keys in any order; runs in O(n log n) for the sort.
+	 * of items with equal keys only the first one is kept, like repeated insert calls would.
+	 * throws IllegalArgumentException if the arrays differ in length.
+	 */
+	public static AVLTree fromUnsorted(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + infos.length + " infos");
+		long[] order = new long[keys.length]; // key in the high half, index in the low half
+		for (int j = 0; j < keys.length; j++)
+			order[j] = ((long)keys[j] << 32) | j;
+		Arrays.sort(order);     // by key, and equal keys by index
+		
+		int n = 0;
+		int[] sortedKeys = new int[keys.length];
+		String[] sortedInfos = new String[keys.length];
+		for (int j = 0; j < order.length; j++) {
+			int key = (int)(order[j] >> 32);
+			if (n > 0 && sortedKeys[n - 1] == key)
+				continue;                 // a later duplicate
+			sortedKeys[n] = key;
+			sortedInfos[n] = infos[(int)order[j]];
+			n++;
+		}
+		if (n < keys.length) {
+			sortedKeys = Arrays.copyOf(sortedKeys, n);
+			sortedInfos = Arrays.copyOf(sortedInfos, n);
+		}
+		return fromSorted(sortedKeys, sortedInfos);
+	}
+	
+	/**
+	 * private IAVLNode buildBalanced(int[] keys, String[] infos, int lo, int hi)
+	 *
+	 * builds a balanced subtree of the items in [lo, hi) and returns its root
+	 * (a virtual node if the range is empty). the parent of the root is not set.
+	 */
+	private IAVLNode buildBalanced(int[] keys, String[] infos, int lo, int hi) {
+		if (lo >= hi)
+			return VIRTUAL_NODE;
+		int mid = (lo + hi) >>> 1;
+		IAVLNode node = new AVLNode(keys[mid], infos[mid]);
+		node.setLeft(buildBalanced(keys, infos, lo, mid));
+		node.setRight(buildBalanced(keys, infos, mid + 1, hi));
+		node.getLeft().setParent(node);
+		node.getRight().setParent(node);
+		updateFields(node);
+		return node;
+	}
+	
+	/**
+	 * public void writeTo(WritableByteChannel channel)
+	 *
+	 * writes the tree to channel, in O(n), as a snapshot which readFrom loads back:
+	 *
+	 *   header  magic, version, the number of items n, and the length of the keys in bytes
+	 *   keys    the smallest key as a zigzag varint, then every difference to the previous
+	 *           key minus 1 as a varint (so sequential keys take a byte each)
+	 *   infos   for every key in order, the length of its UTF-8 bytes plus 1 as a varint
+	 *           (0 for null), followed by the bytes
+	 *
+	 * the header is big endian, the varints are unsigned LEB128.
+	 * augmentations are not written (see fromSorted).
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		long keyBytes = 0;
+		long previous = 0;
+		boolean first = true;
+		for (Cursor cursor = iterator(); cursor.hasNext(); ) {
+			int key = cursor.nextInt();
+			keyBytes += varintLength(first ? zigzag(key) : key - previous - 1);
+			previous = key;
+			first = false;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		buffer.putInt(SNAPSHOT_MAGIC);
+		buffer.putInt(SNAPSHOT_VERSION);
+		buffer.putInt(size());
+		buffer.putLong(keyBytes);
+		first = true;
+		for (Cursor cursor = iterator(); cursor.hasNext(); ) {
+			int key = cursor.nextInt();
+			if (buffer.remaining() < 10)
+				drain(buffer, channel);
+			putVarint(buffer, first ? zigzag(key) : key - previous - 1);
+			previous = key;
+			first = false;
+		}
+		for (Cursor cursor = iterator(); cursor.hasNext(); ) {
+			cursor.nextInt();
+			String info = cursor.info();
+			byte[] bytes = (info == null) ? null : info.getBytes(StandardCharsets.UTF_8);
+			if (buffer.remaining() < 10)
+				drain(buffer, channel);
+			putVarint(buffer, (bytes == null) ? 0 : bytes.length + 1L);
+			if (bytes == null)
+				continue;
+			if (bytes.length > buffer.remaining()) {
+				drain(buffer, channel);
+				if (bytes.length > buffer.remaining()) { // longer than the whole buffer
+					ByteBuffer whole = ByteBuffer.wrap(bytes);
+					while (whole.hasRemaining())
+						channel.write(whole);
+					continue;
+				}
+			}
+			buffer.put(bytes);
+		}
+		drain(buffer, channel);
+	}
+	
+	/**
+	 * public static AVLTree readFrom(FileChannel channel)
+	 *
+	 * maps the snapshot which starts at channel's position and loads it with readFrom(ByteBuffer);
+	 * the channel's position is moved past it.
+	 * throws IOException if the channel does not hold a valid snapshot there.
+	 */
+	public static AVLTree readFrom(FileChannel channel) throws IOException {
+		long start = channel.position();
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, channel.size() - start);
+		AVLTree tree = readFrom(buffer);
+		channel.position(start + buffer.position());
+		return tree;
+	}
+	
+	/**
+	 * public static AVLTree readFrom(ByteBuffer buffer)
+	 *
+	 * loads a snapshot written by writeTo, starting at buffer's position, and moves the position
+	 * past it. the tree is built in O(n) with the shape of fromSorted, while the keys and the
+	 * infos are decoded from buffer in order (a mapped file is read in place; there are no
+	 * intermediate arrays).
+	 * throws IOException if buffer does not hold a valid snapshot.
+	 */
+	public static AVLTree readFrom(ByteBuffer buffer) throws IOException {
+		try {
+			ByteBuffer keys = buffer.duplicate(); // big endian, whatever the order of buffer
+			if (keys.getInt() != SNAPSHOT_MAGIC)
+				throw new IOException("not an AVLTree snapshot");
+			int version = keys.getInt();
+			if (version != SNAPSHOT_VERSION)
+				throw new IOException("unsupported AVLTree snapshot version " + version);
+			int n = keys.getInt();
+			long keyBytes = keys.getLong();
+			if (n < 0 || keyBytes < 0 || keyBytes > keys.remaining())
+				throw new IOException("damaged AVLTree snapshot");
+			ByteBuffer infos = keys.duplicate();
+			infos.position(keys.position() + (int)keyBytes);
+			keys.limit(infos.position());
+			
+			AVLTree tree = new AVLTree();
+			SnapshotReader reader = new SnapshotReader(keys, infos);
+			tree.setRoot(tree.buildFrom(reader, n));
+			if (keys.hasRemaining())
+				throw new IOException("damaged AVLTree snapshot");
+			buffer.position(infos.position());
+			return tree;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("truncated AVLTree snapshot", e);
+		}
+	}
+	
+	/**
+	 * private IAVLNode buildFrom(SnapshotReader reader, int count)
+	 *
+	 * like buildBalanced, for the next count items of reader: the left half is built first,
+	 * so the items are consumed in key order
+	 */
+	private IAVLNode buildFrom(SnapshotReader reader, int count) throws IOException {
+		if (count == 0)
+			return VIRTUAL_NODE;
+		IAVLNode left = buildFrom(reader, count / 2);
+		IAVLNode node = new AVLNode(reader.nextKey(), reader.nextInfo());
+		IAVLNode right = buildFrom(reader, count - count / 2 - 1);
+		linkChildren(node, left, right);
+		return node;
+	}
+	
+	private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	
+	private static long zigzag(int key) {
+		return ((key << 1) ^ (key >> 31)) & 0xFFFF_FFFFL; // small negative keys stay short too
+	}
+	
+	private static int varintLength(long value) {
+		int length = 1;
+		while ((value >>>= 7) != 0)
+			length++;
+		return length;
+	}
+	
+	private static void putVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+	
+	/**
+	 * private static class SnapshotReader
+	 *
+	 * decodes the keys and the infos of a snapshot, each from its own view of the buffer
+	 */
+	private static class SnapshotReader {
+		private final ByteBuffer keys;
+		private final ByteBuffer infos;
+		private long previous; // the last key, or Long.MIN_VALUE before the first
+		private byte[] scratch = new byte[64]; // for infos of buffers without an accessible array
+		
+		SnapshotReader(ByteBuffer keys, ByteBuffer infos) {
+			this.keys = keys;
+			this.infos = infos;
+			this.previous = Long.MIN_VALUE;
+		}
+		
+		int nextKey() throws IOException {
+			long value = getVarint(keys);
+			if (value < 0 || value > 0xFFFF_FFFFL)
+				throw new IOException("damaged AVLTree snapshot");
+			long key;
+			if (previous == Long.MIN_VALUE)
+				key = (int)(value >>> 1) ^ -((int)value & 1); // zigzag
+			else
+				key = previous + value + 1;
+			if (key > Integer.MAX_VALUE)
+				throw new IOException("damaged AVLTree snapshot");
+			previous = key;
+			return (int)key;
+		}
+		
+		String nextInfo() throws IOException {
+			long length = getVarint(infos) - 1;
+			if (length < 0)
+				return null;
+			if (length > infos.remaining())
+				throw new IOException("damaged AVLTree snapshot");
+			int n = (int)length;
+			if (infos.hasArray()) {
+				String info = new String(infos.array(), infos.arrayOffset() + infos.position(), n, StandardCharsets.UTF_8);
+				infos.position(infos.position() + n);
+				return info;
+			}
+			if (scratch.length < n)
+				scratch = new byte[Math.max(n, 2 * scratch.length)];
+			infos.get(scratch, 0, n);
+			return new String(scratch, 0, n, StandardCharsets.UTF_8);
+		}
+		
+		private static long getVarint(ByteBuffer buffer) throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = buffer.get();
+				value |= (long)(b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("damaged AVLTree snapshot");
+		}
 	}
 	
 	/**
@@ -31,24 +453,153 @@ public class AVLTree {
 	 * otherwise, returns a virtual node 
 	 * 
 	 * Runs in O(log n).
-	 * Recursive method.
+	 * a loop which reads the fields of the (final) AVLNode directly, since this is the
+	 * hottest path of the tree and every getter call through IAVLNode is a dispatch.
 	 * 
 	 * @pre node != null
 	 */
 	private IAVLNode searchNode(IAVLNode node, int k) {
-		if(node.isRealNode()== false) {         // stops the search if we could not find the key
-			return node;                                             // returns the virtual node
+		while (node != VIRTUAL_NODE) {    // stops the search if we could not find the key
+			AVLNode real = (AVLNode)node;
+			int key = real.key;
+			if (key == k) {                // if the key is equal to the key of the current node
+				return real;                                                 // returns the node
+			}
+			node = (k < key) ? real.left : real.right; // continues in the child where k would be
+		}
+		return node;                                                  // returns the virtual node
+	}
+	
+	/**
+	 * private IAVLNode findNode(int k)
+	 *
+	 * returns the node with key k if it exists in the tree, otherwise returns a virtual node.
+	 * keys at or beyond the minimum and the maximum are answered in O(1), without a search
+	 */
+	private IAVLNode findNode(int k) {
+		if (this.empty() || k > maximum.getKey() || k < minimum.getKey())
+			return VIRTUAL_NODE;
+		if (k == maximum.getKey())
+			return maximum;
+		if (k == minimum.getKey())
+			return minimum;
+		return searchNode(this.root, k);
+	}
+	
+	
+	/**
+	 * private IAVLNode searchParent(IAVLNode node, int k)
+	 *
+	 * returns the node with key k if it exists in the subtree of node,
+	 * otherwise returns the last real node on the search path, which is
+	 * the node a new node with key k should be connected to
+	 * 
+	 * @pre node is real, and k is between the keys which bound its subtree
+	 */
+	private IAVLNode searchParent(IAVLNode node, int k) {
+		AVLNode real = (AVLNode)node;
+		while (real.key != k) {
+			IAVLNode child = (k < real.key) ? real.left : real.right;
+			if (child == VIRTUAL_NODE) {
+				return real;
+			}
+			real = (AVLNode)child;
+		}
+		return real;
+	}
+	
+	/**
+	 * private IAVLNode searchFrom(IAVLNode finger, int k)
+	 *
+	 * like searchParent(root, k), starting from the real node finger instead of the root:
+	 * climbs to the lowest ancestor whose subtree must hold k's position, then descends.
+	 * for keys close to finger's key this stays in a small subtree, instead of walking the
+	 * whole height twice.
+	 */
+	private IAVLNode searchFrom(IAVLNode finger, int k) {
+		IAVLNode node = finger;
+		IAVLNode parent = node.getParent();
+		if (k > node.getKey()) {
+			while (parent != null && parent.getKey() <= k) { // node's subtree ends below k
+				node = parent;
+				parent = node.getParent();
+			}
 		}
-		if(node.getKey() == k) {           // if the key is equal to the key of the current node
-			return node;                                                     // returns the node 
+		else {
+			while (parent != null && parent.getKey() >= k) { // node's subtree starts above k
+				node = parent;
+				parent = node.getParent();
+			}
+		}
+		return searchParent(node, k);
+	}
+	
+	/**
+	 * private IAVLNode searchEnds(int k)
+	 *
+	 * like searchParent(root, k), answering keys at or beyond the minimum and the maximum
+	 * in O(1), so appending increasing (or decreasing) keys needs no search at all
+	 * 
+	 * @pre !empty()
+	 */
+	private IAVLNode searchEnds(int k) {
+		if (k >= maximum.getKey())
+			return maximum; // the maximum has no right child
+		if (k <= minimum.getKey())
+			return minimum; // the minimum has no left child
+		return searchParent(this.root, k);
+	}
+
+	/**
+	 * private IAVLNode countingSearchParent(IAVLNode node, int k)
+	 *
+	 * searchParent(node, k), recording in metrics the number of nodes it compares k with.
+	 * a copy of the loop rather than a counter in searchParent, which runs without metrics too
+	 *
+	 * @pre metrics != null, and the preconditions of searchParent
+	 */
+	private IAVLNode countingSearchParent(IAVLNode node, int k) {
+		AVLNode real = (AVLNode)node;
+		int length = 1;
+		while (real.key != k) {
+			IAVLNode child = (k < real.key) ? real.left : real.right;
+			if (child == VIRTUAL_NODE)
+				break;
+			real = (AVLNode)child;
+			length++;
 		}
-		else if(node.getKey() > k) {    // if the key is larger than the key of the current node
-			return searchNode(node.getLeft(), k);   // searching for the key k in the left child 
+		metrics.pathLength.record(length);
+		return real;
+	}
+
+	/**
+	 * private IAVLNode countingFindNode(int k)
+	 *
+	 * findNode(k), recording its path length in metrics (0 for the shortcuts at the ends)
+	 */
+	private IAVLNode countingFindNode(int k) {
+		if (this.empty() || k >= maximum.getKey() || k <= minimum.getKey()) {
+			metrics.pathLength.record(0);
+			return findNode(k);
 		}
-		else {                         // if the key is smaller than the key of the current node
-			return searchNode(node.getRight(), k);  // searching for the key k in the left child
+		IAVLNode node = countingSearchParent(this.root, k);
+		return (node.getKey() == k) ? node : VIRTUAL_NODE;
+	}
+
+	/**
+	 * private IAVLNode countingSearchEnds(int k)
+	 *
+	 * searchEnds(k), recording its path length in metrics (0 for the shortcuts at the ends)
+	 *
+	 * @pre !empty()
+	 */
+	private IAVLNode countingSearchEnds(int k) {
+		if (k >= maximum.getKey() || k <= minimum.getKey()) {
+			metrics.pathLength.record(0);
+			return searchEnds(k);
 		}
-	  }
+		return countingSearchParent(this.root, k);
+	}
 	
 	
 	/**
@@ -58,7 +609,11 @@ public class AVLTree {
 	 * otherwise, returns null
 	 */
 	public String search(int k){
-		IAVLNode result = searchNode(this.root, k);  // searching for the node with key k
+		if (metrics != null)
+			return measuredSearch(k);
+		if (cache != null)
+			return searchCached(k);
+		IAVLNode result = findNode(k);  // searching for the node with key k
 		if(result.isRealNode()) {                         // checks if the key was actually found 
 			return result.getValue();                      // returns the value of the node if found
 		} else {
@@ -66,6 +621,46 @@ public class AVLTree {
 		}
 	}
 
+	/**
+	 * private String measuredSearch(int k)
+	 *
+	 * search(k), counted and timed in metrics; the path length is counted by the timed
+	 * search itself, and is 0 for a cache hit
+	 */
+	private String measuredSearch(int k) {
+		metrics.searches++;
+		long start = System.nanoTime();
+		String info = (cache == null) ? HotKeyCache.MISS : cache.get(k);
+		if (info != HotKeyCache.MISS) {
+			metrics.pathLength.record(0);
+		}
+		else {
+			IAVLNode result = countingFindNode(k);
+			info = result.isRealNode() ? result.getValue() : null;
+			if (cache != null && result.isRealNode())
+				cache.put(k, info);
+		}
+		metrics.searchLatency.record(System.nanoTime() - start);
+		return info;
+	}
+
+	/**
+	 * private String searchCached(int k)
+	 *
+	 * search(k) through the cache: a cached key is answered without a search,
+	 * and a key found by the search is cached with its info
+	 */
+	private String searchCached(int k) {
+		String info = cache.get(k);
+		if (info != HotKeyCache.MISS)
+			return info;
+		IAVLNode node = findNode(k);
+		if (!node.isRealNode())
+			return null;
+		cache.put(k, node.getValue());
+		return node.getValue();
+	}
+
 	/**
 	 * public int getBF()
 	 * 
@@ -83,20 +678,6 @@ public class AVLTree {
 	
 	
 	
-	/**
-	 * public IAVLNode buildVirtualNode(IAVLNode parent)
-	 * 
-	 * builds a virtual node
-	 */
-	private IAVLNode buildVirtualNode(IAVLNode parent) {
-		/* IAVLNode result = new AVLNode(-1);
-		    result.setHeight(-1);
-		    result.setParent(parent);
-		    return result;*/
-		return new AVLNode(parent);
-	}
-	
-
 	/**
 	 * public IAVLNode caculateSize(IAVLNode node)
 	 * 
@@ -140,7 +721,7 @@ public class AVLTree {
 	/**
 	 * Calculates sum of real nodes in node's subtree, including self
 	 */
-	private int calculateSubtreeSum(IAVLNode node) {
+	private long calculateSubtreeSum(IAVLNode node) {
 		if (!node.isRealNode())
 			return 0;
 		return node.getKey() + node.getLeft().getSubtreeSum() + node.getRight().getSubtreeSum();
@@ -160,18 +741,26 @@ public class AVLTree {
 			if(getBF(node) == 2) {
 				if(getBF(node.getLeft()) >= 0) {
 					rotateLL(node);
+					if (metrics != null)
+						metrics.rotations[AVLTreeMetrics.LL]++;
 					return 1;
 				}
 				else  { // means that node.getLeft() balance Factor == -1
 					rotateLR(node);
+					if (metrics != null)
+						metrics.rotations[AVLTreeMetrics.LR]++;
 					return 2;
 				}					
 			} else {      // means that node balance factor == -2  
 				if(getBF(node.getRight()) == 1) {
 					rotateRL(node);
+					if (metrics != null)
+						metrics.rotations[AVLTreeMetrics.RL]++;
 					return 2;
 				} else { // means that node.getRight() balance Factor == -1 or balance factor == 0
 					rotateRR(node);
+					if (metrics != null)
+						metrics.rotations[AVLTreeMetrics.RR]++;
 					return 1;
 				}
 			}
@@ -209,7 +798,7 @@ public class AVLTree {
 		IAVLNode D = node.getLeft().getRight(); 
 										  // the left child of the right child of the BF offender
 										  // must become the left child of the BF offender after rotation
-		if(A != root) {
+		if(P != null) {         // A is not the root of the tree (or of a detached subtree)
 			if(A == P.getLeft()) {  //connecting the BF offender's parent to the BF offender left child
 				P.setLeft(B);
 			}
@@ -225,12 +814,13 @@ public class AVLTree {
 		A.setSubtreeSize(caculateSize(A)); // setting A's new size 
 		B.setSubtreeSize(caculateSize(B)); //setting B's new size
 		
+		A.setHeight(caculateHeight(A)); // setting A's new height (A is now B's child)
 		B.setHeight(caculateHeight(B)); // setting B's new height
 		
-		A.setHeight(caculateHeight(A)); // setting A's new height
-		
 		A.setSubtreeSum(calculateSubtreeSum(A));
 		B.setSubtreeSum(calculateSubtreeSum(B));
+		updateAggregates(A);
+		updateAggregates(B);
 		
 		if (A == root) {
 			this.root = B ;
@@ -267,7 +857,7 @@ public class AVLTree {
 		IAVLNode D = node.getRight().getLeft(); 
 										  // the right child of the left child of the BF offender
 										  // must become the right child of the BF offender after rotation
-		if(A != root) {
+		if(P != null) {         // A is not the root of the tree (or of a detached subtree)
 			if(A == P.getLeft()) {  //connecting the BF offender's parent to the BF offender right child
 				P.setLeft(B);
 			}
@@ -282,11 +872,13 @@ public class AVLTree {
 		B.setParent(P); // B's parent becomes P
 		A.setSubtreeSize(caculateSize(A)); // setting A's new size 
 		B.setSubtreeSize(caculateSize(B)); //setting B's new size
+		A.setHeight(caculateHeight(A)); // setting A's new height (A is now B's child)
 		B.setHeight(caculateHeight(B)); // setting B's new height
-		A.setHeight(caculateHeight(A)); // setting A's new height
 		
 		A.setSubtreeSum(calculateSubtreeSum(A));
 		B.setSubtreeSum(calculateSubtreeSum(B));
+		updateAggregates(A);
+		updateAggregates(B);
 		
 		if (A == root) {
 			this.root = B ;
@@ -351,6 +943,21 @@ public class AVLTree {
 	 * returns -1 if an item with key k already exists in the tree.
 	 */
 	public int insert(int k, String i) {
+		if (metrics == null)
+			return insertItem(k, i, false);
+		metrics.inserts++;
+		long start = System.nanoTime();
+		int count = insertItem(k, i, true);
+		metrics.insertLatency.record(System.nanoTime() - start);
+		return count;
+	}
+
+	/**
+	 * private int insertItem(int k, String i, boolean counted)
+	 *
+	 * insert(k, i); if counted, its search records the path length in metrics
+	 */
+	private int insertItem(int k, String i, boolean counted) {
 		int count = 0 ;   // counter for the amount of rotations
 		IAVLNode newNode = new AVLNode(k, i); // create a new leaf node with the key and value 
 		
@@ -360,50 +967,198 @@ public class AVLTree {
 		newNode.setHeight(0); //set the height of the new node*/
 		
 		if (this.empty()) { //if the tree is empty we need to create the root
+			if (counted)
+				metrics.pathLength.record(0);
 			root = newNode; 
 			newNode.setParent(null);
 			minimum = newNode;
 			maximum = newNode; 
 			return count;
 		}
-		IAVLNode node = searchNode(root, k);  
+		IAVLNode node = counted ? countingSearchEnds(k) : searchEnds(k);
 		if (node.getKey() == k) { // if the node exist in the tree 
 			return -1;
-		} else {                  // node is virtual, and newNode should replace it 
-			if(k < minimum.getKey()) { //if the new key is smaller than the minimun -
-				minimum = newNode; // it will become the new minimum
-			}
-			else if(k > maximum.getKey()) { //if the new key is larger than the maximum - 
-				maximum = newNode; // it will become the new maximum
-			}
-			newNode.setParent(node.getParent());
-			if (k < node.getParent().getKey()) { // connect the new node to it's place in the AVLTree
-				node.getParent().setLeft(newNode);
-			}
-			else {
-				node.getParent().setRight(newNode);
-			}
-			
-			count = updateBalanceAndFields(node);
-
+		} else {                  // newNode should become a child of node
+			count = insertLeaf(node, newNode, true);
 		}
 		
 		return count;	
 	}
 
+	/**
+	 * private int insertLeaf(IAVLNode node, IAVLNode newNode, boolean upToRoot)
+	 *
+	 * connects newNode as a child of node (the end of its search path) and rebalances.
+	 * if upToRoot is false, the sizes, sums and augmentations of the ancestors above the
+	 * rebalanced part are left to the caller (see refreshPaths).
+	 * returns the number of rotations
+	 */
+	private int insertLeaf(IAVLNode node, IAVLNode newNode, boolean upToRoot) {
+		int k = newNode.getKey();
+		if(k < minimum.getKey()) { //if the new key is smaller than the minimun -
+			minimum = newNode; // it will become the new minimum
+		}
+		else if(k > maximum.getKey()) { //if the new key is larger than the maximum - 
+			maximum = newNode; // it will become the new maximum
+		}
+		newNode.setParent(node);
+		if (k < node.getKey()) { // connect the new node to it's place in the AVLTree
+			node.setLeft(newNode);
+		}
+		else {
+			node.setRight(newNode);
+		}
+		return updateBalanceAndFields(node, upToRoot);
+	}
+
+	/**
+	 * public int insertAll(int[] keys, String[] infos)
+	 *
+	 * inserts the items (keys[j], infos[j]) in order; keys which are already in the tree
+	 * are skipped, like insert would. every search starts from the node of the previous key
+	 * (see searchFrom), and the sizes, sums and augmentations above the rebalanced parts are
+	 * recalculated once at the end, so a batch of m keys takes O(m log(n/m + 1)) apart from
+	 * the rotations, instead of O(m log n).
+	 * on a tree which is not empty, the shape and the returned count are those of inserting
+	 * the keys one by one with insert. an empty tree is built directly, like fromSorted: it
+	 * is perfectly balanced rather than shaped like a sequence of inserts, and the count is 0.
+	 * returns the total number of rebalancing operations (0 if the tree was empty).
+	 * throws IllegalArgumentException if the keys are not strictly increasing
+	 * or if the arrays differ in length.
+	 */
+	public int insertAll(int[] keys, String[] infos) {
+		checkSorted(keys, infos);
+		if (keys.length == 0)
+			return 0;
+		if (this.empty()) {
+			setRoot(buildBalanced(keys, infos, 0, keys.length));
+			return 0;
+		}
+		int count = 0;
+		IAVLNode finger = this.root;
+		for (int j = 0; j < keys.length; j++) {
+			IAVLNode node = searchFrom(finger, keys[j]);
+			if (node.getKey() == keys[j]) {
+				finger = node;
+				continue;
+			}
+			finger = new AVLNode(keys[j], infos[j]);
+			count += insertLeaf(node, finger, false);
+		}
+		refreshPaths(this.root, keys, 0, keys.length);
+		return count;
+	}
+
+	/**
+	 * private int updateBalanceAndFields(IAVLNode node)
+	 *
+	 * walks up from node (the lowest node whose subtree was changed), rebalancing it and
+	 * recalculating heights, until reaching a subtree whose height did not change.
+	 * above that subtree no balance factor can have changed, so for the remaining ancestors
+	 * only the size and the sum are updated.
+	 * returns the number of rotations
+	 */
 	private int updateBalanceAndFields(IAVLNode node) {
+		return updateBalanceAndFields(node, true);
+	}
+
+	/**
+	 * private int updateBalanceAndFields(IAVLNode node, boolean upToRoot)
+	 *
+	 * like updateBalanceAndFields(node), leaving the remaining ancestors as they are
+	 * if upToRoot is false (for insertAll and deleteAll, which call refreshPaths once at the end)
+	 */
+	private int updateBalanceAndFields(IAVLNode node, boolean upToRoot) {
 		int countRotations = 0;
-		while (node != null) { // going up the AVLTree until we find an unbalanced node
-			if ((getBF(node) > 1) || (getBF(node) < -1)) {
-				countRotations += rotate(node); // if there is an violation of balance, make a rotation 
+		int steps = 0; // the nodes visited, for metrics
+		while (node != null) { // going up the AVLTree until the height stops changing
+			steps++;
+			int oldHeight = node.getHeight();
+			int bf = getBF(node);
+			if ((bf > 1) || (bf < -1)) {
+				countRotations += rotate(node); // if there is an violation of balance, make a rotation
+				node = node.getParent();        // the new root of the rotated subtree (already updated)
+			}
+			else {
+				updateFields(node);
 			}
+			IAVLNode parent = node.getParent();
+			if (node.getHeight() == oldHeight) { // the subtree kept its height
+				if (upToRoot)
+					updateSizeAndSum(parent);
+				break;
+			}
+			node = parent;  // go up to it's parent
+		}
+		if (metrics != null)
+			metrics.fixupLength.record(steps);
+		return countRotations;
+	}
+
+	/**
+	 * private void updateFields(IAVLNode node)
+	 *
+	 * recalculates the height, the size, the sum and the augmentations of node from its children
+	 */
+	private void updateFields(IAVLNode node) {
+		node.setHeight(caculateHeight(node));
+		node.setSubtreeSize(caculateSize(node));
+		node.setSubtreeSum(calculateSubtreeSum(node));
+		updateAggregates(node);
+	}
+
+	/**
+	 * private void updateSizeAndSum(IAVLNode node)
+	 *
+	 * recalculates the size, the sum and the augmentations of node and of all of its ancestors
+	 */
+	private void updateSizeAndSum(IAVLNode node) {
+		updateSizeAndSum(node, null);
+	}
 
-			node.setHeight(caculateHeight(node));
+	/**
+	 * private void updateSizeAndSum(IAVLNode node, IAVLNode top)
+	 *
+	 * like updateSizeAndSum(node), stopping after top (an ancestor of node, or null for the root)
+	 */
+	private void updateSizeAndSum(IAVLNode node, IAVLNode top) {
+		while (node != null) {
 			node.setSubtreeSize(caculateSize(node));
 			node.setSubtreeSum(calculateSubtreeSum(node));
-			node = node.getParent();  // go up to it's parent
+			updateAggregates(node);
+			if (node == top)
+				break;
+			node = node.getParent();
 		}
-		return countRotations;
+	}
+
+	/**
+	 * private void refreshPaths(IAVLNode node, int[] keys, int from, int to)
+	 *
+	 * recalculates the sizes, sums and augmentations on the search paths of keys[from, to)
+	 * (sorted) in the subtree of node, bottom up, splitting the keys at every node like recPrefixes.
+	 * after a batch which did not update them above the rebalanced parts, these paths hold
+	 * every stale node: a rotation recalculates its nodes from their children, so a node off
+	 * these paths is only ever calculated from subtrees without a changed key.
+	 */
+	private void refreshPaths(IAVLNode node, int[] keys, int from, int to) {
+		if (from >= to || !node.isRealNode())
+			return;
+		int key = node.getKey();
+		int mid = from; // the first key which is not smaller than node's key
+		int high = to;
+		while (mid < high) {
+			int j = (mid + high) >>> 1;
+			if (keys[j] >= key)
+				high = j;
+			else
+				mid = j + 1;
+		}
+		refreshPaths(node.getLeft(), keys, from, mid);
+		refreshPaths(node.getRight(), keys, (mid < to && keys[mid] == key) ? mid + 1 : mid, to);
+		node.setSubtreeSize(caculateSize(node));
+		node.setSubtreeSum(calculateSubtreeSum(node));
+		updateAggregates(node);
 	}
 
 	/**
@@ -415,15 +1170,46 @@ public class AVLTree {
 	 * returns -1 if an item with key k was not found in the tree.
 	 */
 	public int delete(int k){
-		IAVLNode node = searchNode(this.root, k);
-		IAVLNode parent = (node != this.root) ? node.getParent() : buildVirtualNode(null); // if root - use temp parent
-		IAVLNode physicalDelParent = parent; // for rotations
-		int countRotations = 0;
+		if (metrics != null)
+			return measuredDelete(k);
+		IAVLNode node = findNode(k);
 		
 		if (!node.isRealNode())
 			return -1;
 		
-		if (node ==  this.minimum)
+		return deleteNode(node, true);
+	}
+
+	/**
+	 * private int measuredDelete(int k)
+	 *
+	 * delete(k), counted and timed in metrics
+	 */
+	private int measuredDelete(int k) {
+		metrics.deletes++;
+		long start = System.nanoTime();
+		IAVLNode node = countingFindNode(k);
+		int count = node.isRealNode() ? deleteNode(node, true) : -1;
+		metrics.deleteLatency.record(System.nanoTime() - start);
+		return count;
+	}
+
+	/**
+	 * private int deleteNode(IAVLNode node, boolean upToRoot)
+	 *
+	 * removes the real node from the tree and rebalances.
+	 * if upToRoot is false, the sizes, sums and augmentations of the ancestors above the
+	 * rebalanced part are left to the caller (see refreshPaths).
+	 * returns the number of rotations
+	 */
+	private int deleteNode(IAVLNode node, boolean upToRoot) {
+		IAVLNode parent = node.getParent(); // null if node is the root
+		IAVLNode physicalDelParent = parent; // for rotations
+		
+		if (cache != null)
+			cache.remove(node.getKey());
+		
+		if (node ==  this.minimum)
 			this.minimum = successor(node);
 		else if (node == this.maximum)
 			this.maximum = predecessor(node);
@@ -437,10 +1223,15 @@ public class AVLTree {
 			successor.setRight(node.getRight());
 			successor.getLeft().setParent(successor);
 			successor.getRight().setParent(successor);
+			successor.setHeight(node.getHeight()); // the fixup compares against the height of this position
+			successor.setSubtreeSize(node.getSubtreeSize());
+			successor.setSubtreeSum(node.getSubtreeSum());
 			if (sucParent == node) // the successor's parent was the deleted node (which is no longer part of the tree)
 				physicalDelParent = successor;
 			else
 				physicalDelParent = sucParent;
+			if (!upToRoot) // the path up to the successor is not on the search path of the deleted key
+				updateSizeAndSum(physicalDelParent, successor);
 		}
 		else if (node.getLeft().isRealNode()) { // has only left child
 			setToParentCorrectSide(parent, node, node.getLeft());
@@ -449,26 +1240,71 @@ public class AVLTree {
 			setToParentCorrectSide(parent, node, node.getRight());
 		}
 		
-		if (node == this.root) {
-			this.root = parent.getRight(); // if node is root then we invoked parent.setRight
-			this.root.setParent(null);
-		}
 		node.disconnect();
-		countRotations = updateBalanceAndFields(physicalDelParent);
-		return countRotations;
+		return updateBalanceAndFields(physicalDelParent, upToRoot);
+	}
+
+	/**
+	 * public int deleteAll(int[] keys)
+	 *
+	 * deletes the items with the given keys in order; keys which are not in the tree are
+	 * skipped, like delete would. like insertAll, every search starts from where the previous
+	 * one ended and the sizes, sums and augmentations are recalculated once at the end.
+	 * returns the total number of rebalancing operations.
+	 * throws IllegalArgumentException if the keys are not strictly increasing.
+	 */
+	public int deleteAll(int[] keys) {
+		checkIncreasing(keys);
+		int count = 0;
+		IAVLNode finger = this.root;
+		for (int j = 0; j < keys.length && !this.empty(); j++) {
+			IAVLNode node = searchFrom(finger, keys[j]);
+			if (node.getKey() != keys[j]) {
+				finger = node;
+				continue;
+			}
+			IAVLNode next = successor(node); // stays in the tree (if it moves, it moves to node's place)
+			finger = (next != null) ? next : predecessor(node);
+			count += deleteNode(node, false);
+		}
+		refreshPaths(this.root, keys, 0, keys.length);
+		return count;
+	}
+
+	/**
+	 * public Finger fingerAtMinimum()
+	 *
+	 * Returns a finger at the smallest key, for keys which grow from there.
+	 */
+	public Finger fingerAtMinimum() {
+		return new Finger(this.empty() ? VIRTUAL_NODE : this.minimum);
+	}
+
+	/**
+	 * public Finger fingerAtMaximum()
+	 *
+	 * Returns a finger at the largest key, for time ordered keys which mostly arrive
+	 * at or a little below the end.
+	 */
+	public Finger fingerAtMaximum() {
+		return new Finger(this.empty() ? VIRTUAL_NODE : this.maximum);
 	}
 	
 	/*
 	 * check on which side curChild is a child to parent, and replace it with newChild
 	 * 
-	 * @pre curChild.getParent() == parent || curChild == root 
+	 * if parent is null then curChild is the root, and newChild becomes the root
+	 * 
+	 * @pre curChild.getParent() == parent
 	 */
 	private void setToParentCorrectSide(IAVLNode parent, IAVLNode curChild, IAVLNode newChild) {
-		if (curChild == parent.getLeft())
+		if (parent == null)
+			this.root = newChild;
+		else if (curChild == parent.getLeft())
 			parent.setLeft(newChild);
 		else
 			parent.setRight(newChild);
-		newChild.setParent(parent);
+		newChild.setParent(parent); // ignored by the virtual node
 	}
 
 	/**
@@ -477,10 +1313,10 @@ public class AVLTree {
 	 * finds the minimal node in a subtree
 	 */
 	private IAVLNode findSubtreeMin(IAVLNode node){
-		while (node.isRealNode()) {
+		while (node.getLeft().isRealNode()) {
 			node = node.getLeft();
 		}
-		return node.getParent();	
+		return node;	
 	}
 	
 	/**
@@ -489,10 +1325,10 @@ public class AVLTree {
 	 * finds the maximal node in a subtree
 	 */
 	private IAVLNode findSubtreeMax(IAVLNode node){
-		while (node.isRealNode()) {
+		while (node.getRight().isRealNode()) {
 			node = node.getRight();
 		}
-		return node.getParent();	
+		return node;	
 	}
 
 	/**
@@ -573,10 +1409,12 @@ public class AVLTree {
 	 * or an empty array if the tree is empty.
 	 */
 	public int[] keysToArray() {
-		IAVLNode[] nodes = nodesToArray();
 		int[] arr = new int[size()]; // empty tree => root is a virtual node => its size is set to 0
-		for (int i = 0; i < arr.length; i++)
-			arr[i] = nodes[i].getKey();
+		IAVLNode node = this.minimum;
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = node.getKey();
+			node = successor(node);
+		}
         return arr;
 	}
 
@@ -588,26 +1426,108 @@ public class AVLTree {
 	 * or an empty array if the tree is empty.
 	 */
 	public String[] infoToArray(){
-		IAVLNode[] nodes = nodesToArray();
 		String[] arr = new String[size()]; // empty tree => root is a virtual node => its size is set to 0
-		for (int i = 0; i < arr.length; i++)
-			arr[i] = nodes[i].getValue();
+		IAVLNode node = this.minimum;
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = node.getValue();
+			node = successor(node);
+		}
         return arr;
 	}
 
-	private IAVLNode[] nodesToArray() {
-		IAVLNode[] arr = new IAVLNode[size()];
-		recNodesToArray(this.root, arr, 0);
-		return arr;
+	/**
+	 * public FrozenAVLIndex freeze()
+	 *
+	 * Returns an immutable copy of the tree for lookups, laid out in van Emde Boas order
+	 * (see FrozenAVLIndex). built from the in-order arrays in O(n); later changes to the
+	 * tree do not affect it.
+	 * throws IllegalArgumentException if the tree has 2^30 keys or more (the complete tree
+	 * of the index would not fit in an int[]), the same limit as FrozenAVLIndex.fromSorted.
+	 */
+	public FrozenAVLIndex freeze() {
+		if (size() >= 1 << 30)
+			throw new IllegalArgumentException("cannot index " + size() + " keys");
+		return new FrozenAVLIndex(keysToArray(), infoToArray());
 	}
 
-	private int recNodesToArray(IAVLNode node, IAVLNode[] arr, int i) {
-		if (!node.isRealNode())
-			return i;
-		i = recNodesToArray(node.getLeft(), arr, i);
-		arr[i++] = node;
-		i = recNodesToArray(node.getRight(), arr, i);
-		return i;
+	/**
+	 * public Cursor iterator()
+	 *
+	 * Returns a cursor over the keys of the tree in increasing order.
+	 */
+	public Cursor iterator() {
+		if (empty())
+			return new Cursor(null, null, false);
+		return new Cursor(this.minimum, this.maximum, false);
+	}
+
+	/**
+	 * public Cursor descendingIterator()
+	 *
+	 * Returns a cursor over the keys of the tree in decreasing order.
+	 */
+	public Cursor descendingIterator() {
+		if (empty())
+			return new Cursor(null, null, true);
+		return new Cursor(this.maximum, this.minimum, true);
+	}
+
+	/**
+	 * public Cursor rangeIterator(int lo, int hi)
+	 *
+	 * Returns a cursor over the keys k with lo <= k <= hi in increasing order.
+	 * finding the first and last key takes O(log n), the rest is a successor walk.
+	 */
+	public Cursor rangeIterator(int lo, int hi) {
+		IAVLNode first = ceilingNode(lo);
+		IAVLNode last = floorNode(hi);
+		if (first == null || last == null || first.getKey() > last.getKey())
+			return new Cursor(null, null, false);
+		return new Cursor(first, last, false);
+	}
+
+	/**
+	 * private IAVLNode ceilingNode(int k)
+	 *
+	 * returns the node with the smallest key >= k, or null if there is none
+	 */
+	private IAVLNode ceilingNode(int k) {
+		IAVLNode result = null;
+		IAVLNode node = this.root;
+		while (node.isRealNode()) {
+			if (node.getKey() < k) {
+				node = node.getRight();
+			}
+			else {
+				result = node;
+				if (node.getKey() == k)
+					break;
+				node = node.getLeft();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * private IAVLNode floorNode(int k)
+	 *
+	 * returns the node with the largest key <= k, or null if there is none
+	 */
+	private IAVLNode floorNode(int k) {
+		IAVLNode result = null;
+		IAVLNode node = this.root;
+		while (node.isRealNode()) {
+			if (node.getKey() > k) {
+				node = node.getLeft();
+			}
+			else {
+				result = node;
+				if (node.getKey() == k)
+					break;
+				node = node.getRight();
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -622,7 +1542,7 @@ public class AVLTree {
 		return root.getSubtreeSize(); // empty tree => root is a virtual node => its size is set to 0
 	}
 	
-	public int sum() {
+	public long sum() {
 		return root.getSubtreeSum();
 	}
    
@@ -654,27 +1574,137 @@ public class AVLTree {
 	   if (empty() || i > root.getSubtreeSize() || i < 1)
 		   return null;
 	   
-	   IAVLNode node = this.minimum;
-	   while (node.getSubtreeSize() < i)   // go up from minimum until subtree has at least i nodes
-		   node = node.getParent();        // all these nodes are left children to their parents
-	   
-	   int p = node.getLeft().getSubtreeSize() + 1; // at this point: p <= i
-	   while (p != i) {
-		   if (p < i) {
-			   node = node.getRight();
-			   p += node.getLeft().getSubtreeSize() + 1;
-		   }
-		   else {    // p > i
-			   p -= node.getLeft().getSubtreeSize() + 1; // we counted too many, so we'll remove the last addition
-			   node = node.getLeft();
-			   p += node.getLeft().getSubtreeSize() + 1;
-		   }
-	   }
-	   
-	   return node.getValue();
+	   return selectNode(i).getValue();
+	}
+
+	/**
+	 * public int selectKey(int i)
+	 *
+	 * Returns the i'th smallest key, like select(i)
+	 * throws IllegalArgumentException if i is not in 1 .. size()
+	 */
+	public int selectKey(int i) {
+		if (i < 1 || i > size())
+			throw new IllegalArgumentException("there is no key of rank " + i + " in a tree of " + size() + " keys");
+		return selectNode(i).getKey();
+	}
+
+	/**
+	 * public String[] selectRange(int i, int j)
+	 *
+	 * Returns the values of the i'th to the j'th smallest keys, in order (the ranks are
+	 * clipped to 1 .. size(), and there are none if i > j): one select, and a walk of
+	 * successors, in O(log n + j - i)
+	 */
+	public String[] selectRange(int i, int j) {
+		i = Math.max(i, 1);
+		j = Math.min(j, size());
+		if (i > j)
+			return new String[0];
+		String[] result = new String[j - i + 1];
+		IAVLNode node = selectNode(i);
+		for (int r = 0; r < result.length; r++) {
+			result[r] = node.getValue();
+			node = successor(node);
+		}
+		return result;
+	}
+
+	/**
+	 * public String[] select(int[] sortedRanks)
+	 *
+	 * Returns select(sortedRanks[j]) for every j, in one descent (see the batched queries
+	 * below), e.g. for many percentiles at once
+	 * throws IllegalArgumentException if the ranks are not sorted
+	 */
+	public String[] select(int[] sortedRanks) {
+		for (int j = 1; j < sortedRanks.length; j++) {
+			if (sortedRanks[j - 1] > sortedRanks[j])
+				throw new IllegalArgumentException("ranks are not sorted at index " + j);
+		}
+		String[] result = new String[sortedRanks.length];
+		recSelect(this.root, sortedRanks, 0, sortedRanks.length, 0, result);
+		return result;
+	}
+
+	/**
+	 * private IAVLNode selectNode(int i)
+	 *
+	 * Returns the node of the i'th smallest key (1 <= i <= size()).
+	 * from the root that takes a descent of about log2 n nodes; from the minimum, a climb to the
+	 * first subtree of at least i nodes and a descent in it, about 2 log2 i nodes, and the same
+	 * from the maximum for the (n - i + 1)'th largest key. the shortest of the three is taken,
+	 * so the extreme ranks (as in low and high percentiles) cost O(log min(i, n - i + 1)).
+	 */
+	private IAVLNode selectNode(int i) {
+		int n = root.getSubtreeSize();
+		int r = n - i + 1; // the rank from the top
+		if ((long)i * i < n) {
+			IAVLNode node = this.minimum;
+			while (node.getSubtreeSize() < i)   // go up from minimum until subtree has at least i nodes
+				node = node.getParent();        // all these nodes are left children to their parents
+			return descend(node, i);
+		}
+		if ((long)r * r < n) {
+			IAVLNode node = this.maximum;
+			while (node.getSubtreeSize() < r)   // the same from the maximum, on the right side
+				node = node.getParent();
+			return descend(node, node.getSubtreeSize() - r + 1);
+		}
+		return descend(this.root, i);
+	}
+
+	/**
+	 * private IAVLNode descend(IAVLNode node, int i)
+	 *
+	 * Returns the node of the i'th smallest key in node's subtree (1 <= i <= its size)
+	 */
+	private IAVLNode descend(IAVLNode node, int i) {
+		while (true) {
+			int p = node.getLeft().getSubtreeSize() + 1; // the rank of node in its subtree
+			if (i == p)
+				return node;
+			if (i < p) {
+				node = node.getLeft();
+			}
+			else {
+				i -= p;
+				node = node.getRight();
+			}
+		}
+	}
+
+	/**
+	 * private void recSelect(IAVLNode node, int[] ranks, int from, int to, int base, String[] result)
+	 *
+	 * answers the queries ranks[from, to), whose paths all reach node; base is the number
+	 * of the keys left of node's subtree. ranks outside the tree get null.
+	 */
+	private void recSelect(IAVLNode node, int[] ranks, int from, int to, int base, String[] result) {
+		if (from >= to)
+			return;
+		if (!node.isRealNode()) {
+			Arrays.fill(result, from, to, null);
+			return;
+		}
+		int rank = base + node.getLeft().getSubtreeSize() + 1;
+		int mid = from; // the first query which is not left of node
+		int high = to;
+		while (mid < high) {
+			int j = (mid + high) >>> 1;
+			if (ranks[j] >= rank)
+				high = j;
+			else
+				mid = j + 1;
+		}
+		int right = mid; // the first query right of node
+		while (right < to && ranks[right] == rank)
+			result[right++] = node.getValue();
+		recSelect(node.getLeft(), ranks, from, mid, base, result);
+		recSelect(node.getRight(), ranks, right, to, rank, result);
 	}
 	/**
-    * public int less(int i)
+    * public long less(int i)
     *
     * Returns the sum of all keys which are less or equal to i
     * i is not necessarily a key in the tree 	
@@ -682,13 +1712,13 @@ public class AVLTree {
 	* precondition: none
     * postcondition: none
     */   
-	public int less(int i){
+	public long less(int i){
 		if (empty() || i < minimum.getKey())
 			return 0;
 		if (i >= maximum.getKey())
 			return root.getSubtreeSum();
 		
-		int sum = 0;
+		long sum = 0;
 		IAVLNode node = this.root;
 		boolean done = false;
 		while (node.isRealNode() && !done) {
@@ -706,6 +1736,809 @@ public class AVLTree {
 		return sum;	
 	}
 
+	/**
+	 * public int countLess(int k)
+	 *
+	 * Returns the number of keys which are less than k
+	 */
+	public int countLess(int k) {
+		return (int)prefix(k, false, false);
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * Returns the number of keys which are less or equal to k
+	 * (so if k is in the tree, select(rank(k)) returns its info)
+	 */
+	public int rank(int k) {
+		return (int)prefix(k, true, false);
+	}
+
+	/**
+	 * public int countBetween(int lo, int hi)
+	 *
+	 * Returns the number of keys k with lo <= k <= hi
+	 */
+	public int countBetween(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		return (int)(prefix(hi, true, false) - prefix(lo, false, false));
+	}
+
+	/**
+	 * public long sumBetween(int lo, int hi)
+	 *
+	 * Returns the sum of all keys k with lo <= k <= hi
+	 */
+	public long sumBetween(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		return prefix(hi, true, true) - prefix(lo, false, true);
+	}
+
+	/**
+	 * private long prefix(int k, boolean inclusive, boolean sums)
+	 *
+	 * returns the number (or the sum, if sums) of the keys which are less than k,
+	 * or less or equal to k if inclusive. like less, in a single descent from the root.
+	 */
+	private long prefix(int k, boolean inclusive, boolean sums) {
+		long result = 0;
+		IAVLNode node = this.root;
+		while (node.isRealNode()) {
+			if (k < node.getKey() || (k == node.getKey() && !inclusive)) {
+				node = node.getLeft();
+			}
+			else {
+				result += sums ? node.getLeft().getSubtreeSum() + node.getKey() : node.getLeft().getSubtreeSize() + 1;
+				node = node.getRight();
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * the batched queries take their queries sorted in increasing order, and answer all of
+	 * them in one descent: the queries are split at every node between its two subtrees, so
+	 * neighbouring queries share the nodes above the point where their paths part.
+	 * m queries on n keys visit O(m log(n / m + 1)) nodes instead of O(m log n).
+	 * they throw IllegalArgumentException if a query array is not sorted.
+	 */
+
+	/**
+	 * public int[] countLess(int[] ks)
+	 *
+	 * Returns countLess(ks[j]) for every j
+	 */
+	public int[] countLess(int[] ks) {
+		return toInts(prefixes(ks, false, false));
+	}
+
+	/**
+	 * public int[] rank(int[] ks)
+	 *
+	 * Returns rank(ks[j]) for every j
+	 */
+	public int[] rank(int[] ks) {
+		return toInts(prefixes(ks, true, false));
+	}
+
+	/**
+	 * public long[] less(int[] ks)
+	 *
+	 * Returns less(ks[j]) for every j
+	 */
+	public long[] less(int[] ks) {
+		return prefixes(ks, true, true);
+	}
+
+	/**
+	 * public int[] countBetween(int[] los, int[] his)
+	 *
+	 * Returns countBetween(los[j], his[j]) for every j (los and his are each sorted)
+	 */
+	public int[] countBetween(int[] los, int[] his) {
+		return toInts(between(los, his, false));
+	}
+
+	/**
+	 * public long[] sumBetween(int[] los, int[] his)
+	 *
+	 * Returns sumBetween(los[j], his[j]) for every j (los and his are each sorted)
+	 */
+	public long[] sumBetween(int[] los, int[] his) {
+		return between(los, his, true);
+	}
+
+	private long[] between(int[] los, int[] his, boolean sums) {
+		if (los.length != his.length)
+			throw new IllegalArgumentException("got " + los.length + " lower and " + his.length + " upper bounds");
+		long[] upper = prefixes(his, true, sums);
+		long[] lower = prefixes(los, false, sums);
+		for (int j = 0; j < upper.length; j++)
+			upper[j] = (los[j] > his[j]) ? 0 : upper[j] - lower[j];
+		return upper;
+	}
+
+	private static int[] toInts(long[] counts) {
+		int[] result = new int[counts.length];
+		for (int j = 0; j < counts.length; j++)
+			result[j] = (int)counts[j];
+		return result;
+	}
+
+	private long[] prefixes(int[] ks, boolean inclusive, boolean sums) {
+		for (int j = 1; j < ks.length; j++) {
+			if (ks[j - 1] > ks[j])
+				throw new IllegalArgumentException("queries are not sorted at index " + j);
+		}
+		long[] result = new long[ks.length];
+		recPrefixes(this.root, ks, 0, ks.length, inclusive, sums, 0, result);
+		return result;
+	}
+
+	/**
+	 * private void recPrefixes(IAVLNode node, int[] ks, int from, int to, boolean inclusive, boolean sums, long base, long[] result)
+	 *
+	 * answers the queries ks[from, to), whose paths all reach node; base is the number (or sum)
+	 * of the keys left of node's subtree.
+	 */
+	private void recPrefixes(IAVLNode node, int[] ks, int from, int to, boolean inclusive, boolean sums, long base, long[] result) {
+		if (from >= to)
+			return;
+		if (!node.isRealNode()) {
+			Arrays.fill(result, from, to, base);
+			return;
+		}
+		int key = node.getKey();
+		int mid = from; // the first query which counts node
+		int high = to;
+		while (mid < high) {
+			int j = (mid + high) >>> 1;
+			if (ks[j] > key || (ks[j] == key && inclusive))
+				high = j;
+			else
+				mid = j + 1;
+		}
+		recPrefixes(node.getLeft(), ks, from, mid, inclusive, sums, base, result);
+		long left = sums ? node.getLeft().getSubtreeSum() + key : node.getLeft().getSubtreeSize() + 1;
+		recPrefixes(node.getRight(), ks, mid, to, inclusive, sums, base + left, result);
+	}
+	
+	/**
+	 * public <A> A aggregate(Augmentation<A> augmentation)
+	 *
+	 * Returns the aggregate of all items in the tree, in O(1)
+	 * throws IllegalArgumentException if the tree does not keep augmentation
+	 */
+	public <A> A aggregate(Augmentation<A> augmentation) {
+		return subtreeAggregate(root, indexOf(augmentation));
+	}
+
+	/**
+	 * public <A> A fold(Augmentation<A> augmentation, int lo, int hi)
+	 *
+	 * Returns the aggregate of the items with keys lo <= k <= hi, in O(log n):
+	 * below the node where the paths to lo and hi part, the path to lo adds the
+	 * right subtrees it passes and the path to hi the left ones.
+	 * throws IllegalArgumentException if the tree does not keep augmentation
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> A fold(Augmentation<A> augmentation, int lo, int hi) {
+		int j = indexOf(augmentation);
+		IAVLNode node = this.root;
+		while (node.isRealNode() && (node.getKey() < lo || node.getKey() > hi))  // find where the paths part
+			node = (node.getKey() < lo) ? node.getRight() : node.getLeft();
+		if (!node.isRealNode())
+			return augmentation.identity();
+		
+		A left = augmentation.identity(); // the items in [lo, node)
+		for (IAVLNode x = node.getLeft(); x.isRealNode(); ) {
+			if (x.getKey() < lo) {
+				x = x.getRight();
+			}
+			else {
+				A part = augmentation.combine(augmentation.lift(x.getKey(), x.getValue()), (A)subtreeAggregate(x.getRight(), j));
+				left = augmentation.combine(part, left);
+				x = x.getLeft();
+			}
+		}
+		A right = augmentation.identity(); // the items in (node, hi]
+		for (IAVLNode x = node.getRight(); x.isRealNode(); ) {
+			if (x.getKey() > hi) {
+				x = x.getLeft();
+			}
+			else {
+				A part = augmentation.combine((A)subtreeAggregate(x.getLeft(), j), augmentation.lift(x.getKey(), x.getValue()));
+				right = augmentation.combine(right, part);
+				x = x.getRight();
+			}
+		}
+		return augmentation.combine(augmentation.combine(left, augmentation.lift(node.getKey(), node.getValue())), right);
+	}
+
+	private int indexOf(Augmentation<?> augmentation) {
+		for (int j = 0; j < augmentations.length; j++)
+			if (augmentations[j] == augmentation)
+				return j;
+		throw new IllegalArgumentException("the tree does not keep this augmentation");
+	}
+
+	@SuppressWarnings("unchecked")
+	private <A> A subtreeAggregate(IAVLNode node, int j) {
+		if (!node.isRealNode())
+			return (A)augmentations[j].identity();
+		return (A)((AVLNode)node).aggregates[j];
+	}
+
+	/**
+	 * private void updateAggregates(IAVLNode node)
+	 *
+	 * recalculates the augmentations of node from its children
+	 */
+	private void updateAggregates(IAVLNode node) {
+		if (augmentations.length == 0)
+			return;
+		Object[] aggregates = ((AVLNode)node).aggregates;
+		for (int j = 0; j < augmentations.length; j++) {
+			Augmentation<Object> augmentation = augmentations[j];
+			Object self = augmentation.lift(node.getKey(), node.getValue());
+			Object left = augmentation.combine(subtreeAggregate(node.getLeft(), j), self);
+			aggregates[j] = augmentation.combine(left, subtreeAggregate(node.getRight(), j));
+		}
+	}
+
+	/**
+	 * public static AVLTree join(AVLTree lower, int k, String info, AVLTree higher)
+	 *
+	 * returns a tree with the items of lower, the item (k, info) and the items of higher.
+	 * lower and higher are left empty (their nodes are moved to the result).
+	 * runs in O(|lower height - higher height| + 1).
+	 * 
+	 * @pre all keys of lower < k < all keys of higher, otherwise throws IllegalArgumentException
+	 */
+	public static AVLTree join(AVLTree lower, int k, String info, AVLTree higher) {
+		if ((!lower.empty() && lower.maximum.getKey() >= k) || (!higher.empty() && higher.minimum.getKey() <= k))
+			throw new IllegalArgumentException("keys of lower must be smaller than " + k + " and keys of higher larger");
+		checkAugmentations(lower, higher);
+		AVLTree result = new AVLTree(lower.augmentations);
+		IAVLNode x = result.new AVLNode(k, info);
+		IAVLNode minimum = lower.empty() ? x : lower.minimum;
+		IAVLNode maximum = higher.empty() ? x : higher.maximum;
+		result.root = result.joinNodes(lower.root, x, higher.root);
+		result.minimum = minimum;
+		result.maximum = maximum;
+		lower.clear();
+		higher.clear();
+		return result;
+	}
+	
+	/**
+	 * public AVLTree[] split(int k)
+	 *
+	 * splits the tree by k, and returns {t1, t2} where t1 holds the items with keys smaller
+	 * than k and t2 the items with keys larger than k. an item with key k is dropped.
+	 * this tree is left empty (its nodes are moved to t1 and t2).
+	 * runs in O(log n).
+	 */
+	public AVLTree[] split(int k) {
+		AVLTree smaller = new AVLTree(this.augmentations);
+		AVLTree larger = new AVLTree(this.augmentations);
+		IAVLNode node = this.root;
+		clear();
+		IAVLNode[] parts = splitNodes(node, k);
+		smaller.setRoot(parts[0]);
+		larger.setRoot(parts[2]);
+		return new AVLTree[] {smaller, larger};
+	}
+	
+	/**
+	 * public static AVLTree union(AVLTree t1, AVLTree t2)
+	 *
+	 * returns a tree with the items of both trees; for keys in both, the item of t1 is kept.
+	 * t1 and t2 are left empty (their nodes are moved to the result).
+	 * runs in O(m log(n/m + 1)) for trees of sizes m <= n.
+	 */
+	public static AVLTree union(AVLTree t1, AVLTree t2) {
+		return setOperation(UNION, t1, t2, null);
+	}
+	
+	/**
+	 * public static AVLTree union(AVLTree t1, AVLTree t2, ForkJoinPool pool)
+	 *
+	 * like union(t1, t2), running the two recursive calls of every step in parallel on pool
+	 */
+	public static AVLTree union(AVLTree t1, AVLTree t2, ForkJoinPool pool) {
+		return setOperation(UNION, t1, t2, pool);
+	}
+	
+	/**
+	 * public static AVLTree intersection(AVLTree t1, AVLTree t2)
+	 *
+	 * returns a tree with the items of t1 whose keys are also in t2.
+	 * t1 and t2 are left empty (their nodes are moved to the result).
+	 * runs in O(m log(n/m + 1)) for trees of sizes m <= n.
+	 */
+	public static AVLTree intersection(AVLTree t1, AVLTree t2) {
+		return setOperation(INTERSECTION, t1, t2, null);
+	}
+	
+	/**
+	 * public static AVLTree intersection(AVLTree t1, AVLTree t2, ForkJoinPool pool)
+	 *
+	 * like intersection(t1, t2), running the two recursive calls of every step in parallel on pool
+	 */
+	public static AVLTree intersection(AVLTree t1, AVLTree t2, ForkJoinPool pool) {
+		return setOperation(INTERSECTION, t1, t2, pool);
+	}
+	
+	/**
+	 * public static AVLTree difference(AVLTree t1, AVLTree t2)
+	 *
+	 * returns a tree with the items of t1 whose keys are not in t2.
+	 * t1 and t2 are left empty (their nodes are moved to the result).
+	 * runs in O(m log(n/m + 1)) for trees of sizes m <= n.
+	 */
+	public static AVLTree difference(AVLTree t1, AVLTree t2) {
+		return setOperation(DIFFERENCE, t1, t2, null);
+	}
+	
+	/**
+	 * public static AVLTree difference(AVLTree t1, AVLTree t2, ForkJoinPool pool)
+	 *
+	 * like difference(t1, t2), running the two recursive calls of every step in parallel on pool
+	 */
+	public static AVLTree difference(AVLTree t1, AVLTree t2, ForkJoinPool pool) {
+		return setOperation(DIFFERENCE, t1, t2, pool);
+	}
+	
+	/**
+	 * private static AVLTree setOperation(int operation, AVLTree t1, AVLTree t2, ForkJoinPool pool)
+	 *
+	 * moves the nodes of t1 and t2 into a new tree holding the result of the operation.
+	 * runs on pool, or in the calling thread if pool is null.
+	 * the result tree's root stays virtual until the end, so the tasks never write
+	 * to the tree object itself, only to the (disjoint) subtrees they own.
+	 */
+	private static AVLTree setOperation(int operation, AVLTree t1, AVLTree t2, ForkJoinPool pool) {
+		checkDistinct(t1, t2);
+		checkAugmentations(t1, t2);
+		AVLTree result = new AVLTree(t1.augmentations);
+		IAVLNode a = t1.root;
+		IAVLNode b = t2.root;
+		t1.clear();
+		t2.clear();
+		if (pool == null)
+			result.setRoot(result.setOperationNodes(operation, a, b));
+		else
+			result.setRoot(pool.invoke(result.new SetOperationTask(operation, a, b)));
+		return result;
+	}
+	
+	private static void checkDistinct(AVLTree t1, AVLTree t2) {
+		if (t1 == t2)
+			throw new IllegalArgumentException("a set operation needs two different trees");
+	}
+	
+	/*
+	 * nodes which move between trees carry their aggregates with them,
+	 * so trees can only be combined if they keep the same augmentations
+	 */
+	private static void checkAugmentations(AVLTree t1, AVLTree t2) {
+		if (!Arrays.equals(t1.augmentations, t2.augmentations))
+			throw new IllegalArgumentException("the trees keep different augmentations");
+	}
+	
+	/**
+	 * private void clear()
+	 *
+	 * makes the tree empty, without touching its nodes
+	 */
+	private void clear() {
+		this.root = VIRTUAL_NODE;
+		this.minimum = null;
+		this.maximum = null;
+		if (cache != null)
+			cache.clear();
+	}
+	
+	/**
+	 * private void setRoot(IAVLNode node)
+	 *
+	 * makes node (the root of a detached subtree, or a virtual node) the root of the tree
+	 */
+	private void setRoot(IAVLNode node) {
+		this.root = node;
+		node.setParent(null);
+		this.minimum = node.isRealNode() ? findSubtreeMin(node) : null;
+		this.maximum = node.isRealNode() ? findSubtreeMax(node) : null;
+		if (cache != null)
+			cache.clear();
+	}
+	
+	/**
+	 * private IAVLNode detach(IAVLNode node)
+	 *
+	 * makes node the root of a detached subtree and returns it
+	 */
+	private IAVLNode detach(IAVLNode node) {
+		node.setParent(null);
+		return node;
+	}
+	
+	/**
+	 * private IAVLNode joinNodes(IAVLNode left, IAVLNode x, IAVLNode right)
+	 *
+	 * joins the detached subtrees left and right (either may be a virtual node) with x
+	 * between them, and returns the root of the result.
+	 * the spine of the higher subtree is descended until a node of about the height
+	 * of the lower one, which becomes x's child; then the path up is rebalanced.
+	 * runs in O(|left height - right height| + 1).
+	 * 
+	 * @pre all keys of left < x.getKey() < all keys of right
+	 */
+	private IAVLNode joinNodes(IAVLNode left, IAVLNode x, IAVLNode right) {
+		int hl = left.getHeight();
+		int hr = right.getHeight();
+		x.setParent(null);
+		if (hl > hr + 1) {                 // x goes down the right spine of left
+			IAVLNode p = null;
+			IAVLNode c = left;
+			while (c.getHeight() > hr + 1) {
+				p = c;
+				c = c.getRight();
+			}
+			linkChildren(x, c, right);
+			p.setRight(x);
+			x.setParent(p);
+			updateBalanceAndFields(p);
+			return findTop(x);
+		}
+		if (hr > hl + 1) {                 // x goes down the left spine of right
+			IAVLNode p = null;
+			IAVLNode c = right;
+			while (c.getHeight() > hl + 1) {
+				p = c;
+				c = c.getLeft();
+			}
+			linkChildren(x, left, c);
+			p.setLeft(x);
+			x.setParent(p);
+			updateBalanceAndFields(p);
+			return findTop(x);
+		}
+		linkChildren(x, left, right);      // heights differ by at most 1
+		return x;
+	}
+	
+	/**
+	 * private void linkChildren(IAVLNode x, IAVLNode left, IAVLNode right)
+	 *
+	 * makes left and right the children of x, and updates x's fields
+	 */
+	private void linkChildren(IAVLNode x, IAVLNode left, IAVLNode right) {
+		x.setLeft(left);
+		x.setRight(right);
+		left.setParent(x);
+		right.setParent(x);
+		updateFields(x);
+	}
+	
+	private IAVLNode findTop(IAVLNode node) {
+		while (node.getParent() != null)
+			node = node.getParent();
+		return node;
+	}
+	
+	/**
+	 * private IAVLNode[] splitNodes(IAVLNode node, int k)
+	 *
+	 * splits the detached subtree of node by k, and returns {the root of the keys smaller
+	 * than k, the node with key k (detached) or null, the root of the keys larger than k}.
+	 * the joins along the search path telescope, so it runs in O(log n).
+	 */
+	private IAVLNode[] splitNodes(IAVLNode node, int k) {
+		if (!node.isRealNode())
+			return new IAVLNode[] {VIRTUAL_NODE, null, VIRTUAL_NODE};
+		IAVLNode left = detach(node.getLeft());
+		IAVLNode right = detach(node.getRight());
+		if (k == node.getKey()) {
+			node.disconnect();
+			return new IAVLNode[] {left, node, right};
+		}
+		IAVLNode[] parts;
+		if (k < node.getKey()) {
+			parts = splitNodes(left, k);
+			parts[2] = joinNodes(parts[2], node, right);
+		}
+		else {
+			parts = splitNodes(right, k);
+			parts[0] = joinNodes(left, node, parts[0]);
+		}
+		return parts;
+	}
+	
+	/**
+	 * private IAVLNode join2(IAVLNode left, IAVLNode right)
+	 *
+	 * joins two detached subtrees without a middle node, by splitting off the maximum of left
+	 */
+	private IAVLNode join2(IAVLNode left, IAVLNode right) {
+		if (!left.isRealNode())
+			return right;
+		if (!right.isRealNode())
+			return left;
+		IAVLNode[] parts = splitNodes(left, findSubtreeMax(left).getKey());
+		return joinNodes(parts[0], parts[1], right);
+	}
+	
+	/*
+	 * the set operations on detached subtrees: split b by the root of a,
+	 * recurse on both sides and join the results (Blelloch, Ferizovic and Sun,
+	 * "Just Join for Parallel Ordered Sets")
+	 */
+	
+	private IAVLNode setOperationNodes(int operation, IAVLNode a, IAVLNode b) {
+		switch (operation) {
+		case UNION:
+			return unionNodes(a, b);
+		case INTERSECTION:
+			return intersectionNodes(a, b);
+		default:
+			return differenceNodes(a, b);
+		}
+	}
+	
+	private IAVLNode unionNodes(IAVLNode a, IAVLNode b) {
+		if (!a.isRealNode())
+			return b;
+		if (!b.isRealNode())
+			return a;
+		IAVLNode left = detach(a.getLeft());
+		IAVLNode right = detach(a.getRight());
+		IAVLNode[] parts = splitNodes(b, a.getKey()); // b's node with a's key (if any) is dropped
+		return joinNodes(unionNodes(left, parts[0]), a, unionNodes(right, parts[2]));
+	}
+	
+	private IAVLNode intersectionNodes(IAVLNode a, IAVLNode b) {
+		if (!a.isRealNode() || !b.isRealNode())
+			return VIRTUAL_NODE;
+		IAVLNode left = detach(a.getLeft());
+		IAVLNode right = detach(a.getRight());
+		IAVLNode[] parts = splitNodes(b, a.getKey());
+		IAVLNode l = intersectionNodes(left, parts[0]);
+		IAVLNode r = intersectionNodes(right, parts[2]);
+		return (parts[1] != null) ? joinNodes(l, a, r) : join2(l, r);
+	}
+	
+	private IAVLNode differenceNodes(IAVLNode a, IAVLNode b) {
+		if (!a.isRealNode() || !b.isRealNode())
+			return a;
+		IAVLNode left = detach(b.getLeft());
+		IAVLNode right = detach(b.getRight());
+		IAVLNode[] parts = splitNodes(a, b.getKey()); // a's node with b's key (if any) is dropped
+		return join2(differenceNodes(parts[0], left), differenceNodes(parts[2], right));
+	}
+	
+	/**
+	 * public class Cursor
+	 *
+	 * iterates over keys by walking from node to successor (or predecessor), so a step
+	 * takes O(1) amortized and nothing is allocated per key.
+	 * info() returns the info of the key which nextInt() returned last.
+	 * the tree must not be changed while a cursor is in use.
+	 */
+	public class Cursor implements PrimitiveIterator.OfInt {
+		private IAVLNode next; // the node to return next, null when done
+		private final IAVLNode last; // the final node to return
+		private final boolean descending;
+		private IAVLNode current; // the node returned last
+
+		private Cursor(IAVLNode first, IAVLNode last, boolean descending) {
+			this.next = first;
+			this.last = last;
+			this.descending = descending;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public int nextInt() {
+			if (next == null)
+				throw new NoSuchElementException();
+			current = next;
+			if (next == last)
+				next = null;
+			else
+				next = descending ? predecessor(next) : successor(next);
+			return current.getKey();
+		}
+
+		public String info() {
+			if (current == null)
+				throw new IllegalStateException("nextInt() was not called");
+			return current.getValue();
+		}
+	}
+
+	/**
+	 * public class Finger
+	 *
+	 * a position in the tree, which moves to the key of every search, insert or delete made
+	 * through it. each of them searches from that position (see searchFrom) instead of from
+	 * the root: from the minimum or the maximum, a key d positions away takes O(log d) to
+	 * find, and for a finger inside the tree the climb stops below the root whenever the
+	 * key is close by. inserts and deletes still update sizes up to the root.
+	 * a finger stays usable across changes made through other fingers or the tree itself,
+	 * but not after the nodes of the tree were moved by join, split or a set operation.
+	 */
+	public class Finger {
+		private IAVLNode node; // the current position, or a virtual node while the tree is empty
+
+		private Finger(IAVLNode node) {
+			this.node = node;
+		}
+
+		/*
+		 * the node to search from: the current position, unless it was deleted meanwhile
+		 * (a deleted node is disconnected, so only the root has no parent)
+		 */
+		private IAVLNode start() {
+			if (!node.isRealNode() || (node.getParent() == null && node != root))
+				node = root;
+			return node;
+		}
+
+		/**
+		 * public String search(int k)
+		 *
+		 * like AVLTree.search(k); the finger moves to k, or to where k would be
+		 */
+		public String search(int k) {
+			if (!start().isRealNode())
+				return null;
+			node = searchFrom(node, k);
+			return (node.getKey() == k) ? node.getValue() : null;
+		}
+
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * like AVLTree.insert(k, i); the finger moves to k
+		 */
+		public int insert(int k, String i) {
+			if (!start().isRealNode()) {
+				int count = AVLTree.this.insert(k, i);
+				node = root;
+				return count;
+			}
+			IAVLNode parent = searchFrom(node, k);
+			if (parent.getKey() == k) {
+				node = parent;
+				return -1;
+			}
+			node = new AVLNode(k, i);
+			return insertLeaf(parent, node, true);
+		}
+
+		/**
+		 * public int delete(int k)
+		 *
+		 * like AVLTree.delete(k); the finger moves to the successor of k
+		 * (or to its predecessor if k was the maximum)
+		 */
+		public int delete(int k) {
+			if (!start().isRealNode())
+				return -1;
+			IAVLNode target = searchFrom(node, k);
+			if (target.getKey() != k) {
+				node = target;
+				return -1;
+			}
+			IAVLNode next = successor(target); // stays in the tree (if it moves, it moves to target's place)
+			if (next == null)
+				next = predecessor(target);
+			node = (next != null) ? next : VIRTUAL_NODE;
+			return deleteNode(target, true);
+		}
+
+		/**
+		 * public int key()
+		 *
+		 * Returns the key at the finger's position
+		 * throws NoSuchElementException if the tree is empty
+		 */
+		public int key() {
+			if (!start().isRealNode())
+				throw new NoSuchElementException();
+			return node.getKey();
+		}
+	}
+
+	/**
+	 * private class SetOperationTask
+	 *
+	 * a set operation on two detached subtrees, which forks the recursive call on the
+	 * smaller keys and computes the one on the larger keys itself.
+	 * small inputs are handled by the sequential recursion.
+	 */
+	private class SetOperationTask extends RecursiveTask<IAVLNode> {
+		private static final long serialVersionUID = 1L; // tasks are Serializable, though these are never serialized
+
+		private final int operation;
+		private final IAVLNode a;
+		private final IAVLNode b;
+		
+		SetOperationTask(int operation, IAVLNode a, IAVLNode b) {
+			this.operation = operation;
+			this.a = a;
+			this.b = b;
+		}
+		
+		@Override
+		protected IAVLNode compute() {
+			if (!a.isRealNode() || !b.isRealNode()
+					|| a.getSubtreeSize() + b.getSubtreeSize() <= PARALLEL_THRESHOLD)
+				return setOperationNodes(operation, a, b);
+			
+			IAVLNode pivot = (operation == DIFFERENCE) ? b : a; // the tree whose root splits the other
+			IAVLNode other = (operation == DIFFERENCE) ? a : b;
+			IAVLNode left = detach(pivot.getLeft());
+			IAVLNode right = detach(pivot.getRight());
+			IAVLNode[] parts = splitNodes(other, pivot.getKey());
+			SetOperationTask smaller = (operation == DIFFERENCE)
+					? new SetOperationTask(operation, parts[0], left)
+					: new SetOperationTask(operation, left, parts[0]);
+			SetOperationTask larger = (operation == DIFFERENCE)
+					? new SetOperationTask(operation, parts[2], right)
+					: new SetOperationTask(operation, right, parts[2]);
+			smaller.fork();
+			IAVLNode r = larger.compute();
+			IAVLNode l = smaller.join();
+			
+			if (operation == UNION || (operation == INTERSECTION && parts[1] != null))
+				return joinNodes(l, a, r);
+			return join2(l, r);
+		}
+	}
+	
+	/**
+	 * private class BuildTask
+	 *
+	 * builds a balanced subtree of the sorted items in [lo, hi), like buildBalanced,
+	 * forking the left half
+	 */
+	private class BuildTask extends RecursiveTask<IAVLNode> {
+		private static final long serialVersionUID = 1L; // tasks are Serializable, though these are never serialized
+
+		private final int[] keys;
+		private final String[] infos;
+		private final int lo;
+		private final int hi;
+		
+		BuildTask(int[] keys, String[] infos, int lo, int hi) {
+			this.keys = keys;
+			this.infos = infos;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		@Override
+		protected IAVLNode compute() {
+			if (hi - lo <= PARALLEL_THRESHOLD)
+				return buildBalanced(keys, infos, lo, hi);
+			int mid = (lo + hi) >>> 1;
+			BuildTask left = new BuildTask(keys, infos, lo, mid);
+			left.fork();
+			IAVLNode right = new BuildTask(keys, infos, mid + 1, hi).compute();
+			IAVLNode node = new AVLNode(keys[mid], infos[mid]);
+			linkChildren(node, left.join(), right);
+			return node;
+		}
+	}
+
 	/**
 	* public interface IAVLNode
 	* ! Do not delete or modify this - otherwise all tests will fail !
@@ -727,8 +2560,8 @@ public class AVLTree {
     	
     	// additional methods
 		public void disconnect(); // reset node's parent (to null) and children (to virtual nodes)
-		public void setSubtreeSum(int size); // sets the sum of real nodes' keys in this node's subtree
-		public int getSubtreeSum(); // Returns the sum of real nodes' keys in this node's subtree (in O(1))
+		public void setSubtreeSum(long sum); // sets the sum of real nodes' keys in this node's subtree
+		public long getSubtreeSum(); // Returns the sum of real nodes' keys in this node's subtree (in O(1))
     	
 	}
 
@@ -741,7 +2574,7 @@ public class AVLTree {
 	 * This class can and must be modified.
 	 * (It must implement IAVLNode)
 	 */
-	public class AVLNode implements IAVLNode{
+	public final class AVLNode implements IAVLNode{
 		private int key; //holds the node's key 
 		private String value; //holds the node's value [info]
 		private IAVLNode left; //holds the node's left child
@@ -750,29 +2583,22 @@ public class AVLTree {
 	  	private int size ;   //holds the amount of nodes in this subtree(including itself)
 	  						 //node.size = node.left.size + node.right.size + 1
 	  	private int height; //holds the node's height
-	  	private int sum; // holds sum of real nodes' keys in this node's subtree
-	  	
-	  	public AVLNode(IAVLNode parent) {
-			this.key = -1;
-			this.value = null;
-			this.height = -1;
-			this.parent = parent;
-			this.size = 0;
-			this.sum = 0;
-			this.left = null;
-			this.right = null;
-			// constructor of a virtual node
-		}
+	  	private long sum; // holds sum of real nodes' keys in this node's subtree
+	  	private final Object[] aggregates; // the tree's augmentations of this subtree, by index
 	  	
 	  	public AVLNode(int i, String val) {
 			this.key = i;
 			this.value = val;
 			this.height = 0;
 			this.size = 1;
-			this.left = new AVLNode(this); // virtual node
-			this.right = new AVLNode(this); // virtual node
+			this.left = VIRTUAL_NODE; // virtual node
+			this.right = VIRTUAL_NODE; // virtual node
 			this.sum = i;
 			this.parent = null;
+			this.aggregates = (augmentations.length == 0) ? NO_AGGREGATES : new Object[augmentations.length];
+			updateAggregates(this);
+			if (metrics != null)
+				metrics.allocations++;
 			
 			// constructor of a node by a key and value
 		}		
@@ -811,10 +2637,7 @@ public class AVLTree {
 		
 		// Returns True if this is a non-virtual AVL node
 		public boolean isRealNode(){
-			if (this.key != -1) { // real nodes keys are natural numbers 
-				return true;
-			}
-			return false; 
+			return true; // the only virtual node is VIRTUAL_NODE, so any int (-1 included) is a real key
 		}
 		
 		public void setSubtreeSize(int size){
@@ -838,22 +2661,88 @@ public class AVLTree {
 		@Override
 		public void disconnect() {
 			this.setParent(null);
-			this.setLeft(new AVLNode(this));
-			this.setRight(new AVLNode(this));
+			this.setLeft(VIRTUAL_NODE);
+			this.setRight(VIRTUAL_NODE);
 			this.setSubtreeSize(1);
 			this.setHeight(0);
+			this.setSubtreeSum(this.getKey());
+			updateAggregates(this);
 		}
 
 		@Override
-		public void setSubtreeSum(int sum) {
+		public void setSubtreeSum(long sum) {
 			this.sum = sum;
 		}
 
 		@Override
-		public int getSubtreeSum() {
+		public long getSubtreeSum() {
 			return this.sum;
 		}	
   }
-}
-  
 
+	/**
+	 * private static final class VirtualNode
+	 *
+	 * The virtual node. A single instance is shared by all leaves of all trees,
+	 * so it holds no parent, and its setters do nothing.
+	 */
+	private static final class VirtualNode implements IAVLNode{
+		
+		public int getKey(){
+			return -1; // virtual nodes have no key
+		}
+		
+		public String getValue(){
+			return null;
+		}
+		
+		public void setLeft(IAVLNode node){
+		}
+		
+		public IAVLNode getLeft(){
+			return null;
+		}
+		
+		public void setRight(IAVLNode node){
+		}
+		
+		public IAVLNode getRight(){
+			return null;
+		}
+		
+		public void setParent(IAVLNode node){
+		}
+		
+		public IAVLNode getParent(){
+			return null;
+		}
+		
+		public boolean isRealNode(){
+			return false;
+		}
+		
+		public void setSubtreeSize(int size){
+		}
+		
+		public int getSubtreeSize(){
+			return 0;
+		}
+		
+		public void setHeight(int height){
+		}
+		
+		public int getHeight(){
+			return -1;
+		}
+		
+		public void disconnect() {
+		}
+		
+		public void setSubtreeSum(long sum) {
+		}
+		
+		public long getSubtreeSum() {
+			return 0;
+		}
+	}
+}
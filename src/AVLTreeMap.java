@@ -0,0 +1,969 @@
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * AVLTreeMap
+ * An AVL Tree with keys of any type, ordered by a Comparator (or by their natural order),
+ * as a java.util.NavigableMap. It can replace a TreeMap.
+ *
+ * Like AVLTree, every node keeps the size of its subtree, so size() of a sub map view
+ * takes O(log n) (TreeMap counts the entries of a view one by one).
+ * Deleting a node with two children moves its successor node into its place instead of
+ * copying the successor's entry, so entries handed out by iterators stay valid.
+ *
+ * The views (subMap, headMap, tailMap, descendingMap) are AVLTreeMaps themselves: they share
+ * the tree of the map they were created from, and differ only in their bounds and direction.
+ * Like TreeMap, this class is not synchronized, and its iterators are fail-fast.
+ */
+public class AVLTreeMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+	private final Tree<K, V> tree;
+
+	// the bounds of the view, in key order (also for a descending view)
+	private final boolean fromStart, toEnd; // no lower / upper bound
+	private final K lo, hi;
+	private final boolean loInclusive, hiInclusive;
+	private final boolean descending;
+
+	public AVLTreeMap() {
+		this((Comparator<? super K>)null);
+	}
+
+	/**
+	 * creates an empty map ordered by comparator (by the natural order of the keys if null)
+	 */
+	public AVLTreeMap(Comparator<? super K> comparator) {
+		this(new Tree<K, V>(comparator), true, null, true, true, null, true, false);
+	}
+
+	/**
+	 * creates a map with the entries of m, ordered by the natural order of the keys
+	 */
+	public AVLTreeMap(Map<? extends K, ? extends V> m) {
+		this((Comparator<? super K>)null);
+		putAll(m);
+	}
+
+	private AVLTreeMap(Tree<K, V> tree, boolean fromStart, K lo, boolean loInclusive,
+			boolean toEnd, K hi, boolean hiInclusive, boolean descending) {
+		this.tree = tree;
+		this.fromStart = fromStart;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.toEnd = toEnd;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+	}
+
+	/*
+	 * bounds
+	 */
+
+	private boolean tooLow(Object key) {
+		if (fromStart)
+			return false;
+		int c = tree.compare(key, lo);
+		return c < 0 || (c == 0 && !loInclusive);
+	}
+
+	private boolean tooHigh(Object key) {
+		if (toEnd)
+			return false;
+		int c = tree.compare(key, hi);
+		return c > 0 || (c == 0 && !hiInclusive);
+	}
+
+	private boolean inRange(Object key) {
+		return !tooLow(key) && !tooHigh(key);
+	}
+
+	/**
+	 * whether key may be a bound of a view of this view: an inclusive bound must be in range,
+	 * an exclusive bound may also be equal to an exclusive bound of this view
+	 */
+	private boolean inRange(Object key, boolean inclusive) {
+		if (inclusive)
+			return inRange(key);
+		return (fromStart || tree.compare(key, lo) >= 0) && (toEnd || tree.compare(key, hi) <= 0);
+	}
+
+	/*
+	 * navigation in key order, within the bounds
+	 */
+
+	private Node<K, V> absLowest() {
+		Node<K, V> node = fromStart ? tree.first() : tree.ceiling(lo, loInclusive);
+		return (node == null || tooHigh(node.key)) ? null : node;
+	}
+
+	private Node<K, V> absHighest() {
+		Node<K, V> node = toEnd ? tree.last() : tree.floor(hi, hiInclusive);
+		return (node == null || tooLow(node.key)) ? null : node;
+	}
+
+	private Node<K, V> absCeiling(K key, boolean inclusive) {
+		if (tooLow(key))
+			return absLowest();
+		Node<K, V> node = tree.ceiling(key, inclusive);
+		return (node == null || tooHigh(node.key)) ? null : node;
+	}
+
+	private Node<K, V> absFloor(K key, boolean inclusive) {
+		if (tooHigh(key))
+			return absHighest();
+		Node<K, V> node = tree.floor(key, inclusive);
+		return (node == null || tooLow(node.key)) ? null : node;
+	}
+
+	/*
+	 * navigation in the order of the view
+	 */
+
+	private Node<K, V> lowest() {
+		return descending ? absHighest() : absLowest();
+	}
+
+	private Node<K, V> highest() {
+		return descending ? absLowest() : absHighest();
+	}
+
+	private Node<K, V> next(Node<K, V> node) {
+		if (descending) {
+			node = Tree.predecessor(node);
+			return (node == null || tooLow(node.key)) ? null : node;
+		}
+		node = Tree.successor(node);
+		return (node == null || tooHigh(node.key)) ? null : node;
+	}
+
+	private Node<K, V> ceilingNode(K key) {
+		return descending ? absFloor(key, true) : absCeiling(key, true);
+	}
+
+	private Node<K, V> higherNode(K key) {
+		return descending ? absFloor(key, false) : absCeiling(key, false);
+	}
+
+	private Node<K, V> floorNode(K key) {
+		return descending ? absCeiling(key, true) : absFloor(key, true);
+	}
+
+	private Node<K, V> lowerNode(K key) {
+		return descending ? absCeiling(key, false) : absFloor(key, false);
+	}
+
+	private static <K, V> Map.Entry<K, V> export(Node<K, V> node) {
+		return (node == null) ? null : new AbstractMap.SimpleImmutableEntry<K, V>(node);
+	}
+
+	private static <K> K keyOf(Node<K, ?> node) {
+		return (node == null) ? null : node.key;
+	}
+
+	private static <K> K keyOrThrow(Node<K, ?> node) {
+		if (node == null)
+			throw new NoSuchElementException();
+		return node.key;
+	}
+
+	/*
+	 * Map
+	 */
+
+	@Override
+	public int size() {
+		if (fromStart && toEnd)
+			return tree.size();
+		int below = fromStart ? 0 : tree.countBelow(lo, !loInclusive);
+		int upTo = toEnd ? tree.size() : tree.countBelow(hi, hiInclusive);
+		return Math.max(upTo - below, 0);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return lowest() == null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return inRange(key) && tree.getNode(key) != null;
+	}
+
+	@Override
+	public V get(Object key) {
+		if (!inRange(key))
+			return null;
+		Node<K, V> node = tree.getNode(key);
+		return (node == null) ? null : node.value;
+	}
+
+	/**
+	 * throws IllegalArgumentException if key is outside the bounds of this view
+	 */
+	@Override
+	public V put(K key, V value) {
+		if (!inRange(key))
+			throw new IllegalArgumentException("key out of range");
+		return tree.put(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		if (!inRange(key))
+			return null;
+		Node<K, V> node = tree.getNode(key);
+		if (node == null)
+			return null;
+		V old = node.value;
+		tree.deleteNode(node);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		if (fromStart && toEnd) {
+			tree.clear();
+			return;
+		}
+		for (Iterator<Map.Entry<K, V>> it = entrySet().iterator(); it.hasNext(); ) { // the entries of the view one by one
+			it.next();
+			it.remove();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new NodeIterator<Map.Entry<K, V>>() {
+					Map.Entry<K, V> get(Node<K, V> node) {
+						return node;
+					}
+				};
+			}
+			public int size() {
+				return AVLTreeMap.this.size();
+			}
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry))
+					return false;
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+				if (!inRange(e.getKey()))
+					return false;
+				Node<K, V> node = tree.getNode(e.getKey());
+				return node != null && (node.value == null ? e.getValue() == null : node.value.equals(e.getValue()));
+			}
+			public boolean remove(Object o) {
+				if (!contains(o))
+					return false;
+				tree.deleteNode(tree.getNode(((Map.Entry<?, ?>)o).getKey()));
+				return true;
+			}
+			public void clear() {
+				AVLTreeMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			public Iterator<V> iterator() {
+				return new NodeIterator<V>() {
+					V get(Node<K, V> node) {
+						return node.value;
+					}
+				};
+			}
+			public int size() {
+				return AVLTreeMap.this.size();
+			}
+			public void clear() {
+				AVLTreeMap.this.clear();
+			}
+		};
+	}
+
+	/*
+	 * SortedMap and NavigableMap
+	 */
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return descending ? Collections.reverseOrder(tree.comparator) : tree.comparator;
+	}
+
+	@Override
+	public K firstKey() {
+		return keyOrThrow(lowest());
+	}
+
+	@Override
+	public K lastKey() {
+		return keyOrThrow(highest());
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return export(lowest());
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return export(highest());
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		Node<K, V> node = lowest();
+		Map.Entry<K, V> result = export(node);
+		if (node != null)
+			tree.deleteNode(node);
+		return result;
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		Node<K, V> node = highest();
+		Map.Entry<K, V> result = export(node);
+		if (node != null)
+			tree.deleteNode(node);
+		return result;
+	}
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return export(lowerNode(key));
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return keyOf(lowerNode(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return export(floorNode(key));
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return keyOf(floorNode(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return export(ceilingNode(key));
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return keyOf(ceilingNode(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return export(higherNode(key));
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return keyOf(higherNode(key));
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return new KeySet<K>(this);
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return new AVLTreeMap<K, V>(tree, fromStart, lo, loInclusive, toEnd, hi, hiInclusive, !descending);
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		int c = tree.compare(fromKey, toKey);
+		if (descending ? c < 0 : c > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+		if (descending)
+			return view(false, toKey, toInclusive, false, fromKey, fromInclusive);
+		return view(false, fromKey, fromInclusive, false, toKey, toInclusive);
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		if (descending)
+			return view(false, toKey, inclusive, true, null, false);
+		return view(true, null, false, false, toKey, inclusive);
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		if (descending)
+			return view(true, null, false, false, fromKey, inclusive);
+		return view(false, fromKey, inclusive, true, null, false);
+	}
+
+	@Override
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * private AVLTreeMap<K, V> view(boolean noLo, K newLo, boolean newLoInclusive, boolean noHi, K newHi, boolean newHiInclusive)
+	 *
+	 * a view of this view narrowed to the given bounds (in key order); a missing bound
+	 * keeps the bound of this view.
+	 * throws IllegalArgumentException if a bound is outside this view
+	 */
+	private AVLTreeMap<K, V> view(boolean noLo, K newLo, boolean newLoInclusive, boolean noHi, K newHi, boolean newHiInclusive) {
+		if (!noLo && !inRange(newLo, newLoInclusive))
+			throw new IllegalArgumentException("fromKey out of range");
+		if (!noHi && !inRange(newHi, newHiInclusive))
+			throw new IllegalArgumentException("toKey out of range");
+		if (noLo) {
+			newLo = this.lo;
+			newLoInclusive = this.loInclusive;
+		}
+		if (noHi) {
+			newHi = this.hi;
+			newHiInclusive = this.hiInclusive;
+		}
+		return new AVLTreeMap<K, V>(tree, noLo && fromStart, newLo, newLoInclusive, noHi && toEnd, newHi, newHiInclusive, descending);
+	}
+
+	/**
+	 * private abstract class NodeIterator<T>
+	 *
+	 * walks the nodes of the view in its order; remove deletes the node returned last
+	 */
+	private abstract class NodeIterator<T> implements Iterator<T> {
+		private Node<K, V> next = lowest();
+		private Node<K, V> lastReturned = null;
+		private int expectedModCount = tree.modCount;
+
+		abstract T get(Node<K, V> node);
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public T next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			if (tree.modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			lastReturned = next;
+			next = AVLTreeMap.this.next(next);
+			return get(lastReturned);
+		}
+
+		public void remove() {
+			if (lastReturned == null)
+				throw new IllegalStateException();
+			if (tree.modCount != expectedModCount)
+				throw new ConcurrentModificationException();
+			tree.deleteNode(lastReturned); // next keeps its place, since nodes are moved and not copied
+			lastReturned = null;
+			expectedModCount = tree.modCount;
+		}
+	}
+
+	/**
+	 * private static final class KeySet<K>
+	 *
+	 * the keys of a map view, as a NavigableSet
+	 */
+	private static final class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+		private final NavigableMap<K, ?> m;
+
+		KeySet(NavigableMap<K, ?> m) {
+			this.m = m;
+		}
+
+		public Iterator<K> iterator() {
+			final Iterator<? extends Map.Entry<K, ?>> entries = m.entrySet().iterator();
+			return new Iterator<K>() {
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+				public K next() {
+					return entries.next().getKey();
+				}
+				public void remove() {
+					entries.remove();
+				}
+			};
+		}
+
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		public int size() {
+			return m.size();
+		}
+
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		public boolean remove(Object o) {
+			if (!m.containsKey(o))
+				return false;
+			m.remove(o);
+			return true;
+		}
+
+		public void clear() {
+			m.clear();
+		}
+
+		public Comparator<? super K> comparator() {
+			return m.comparator();
+		}
+
+		public K first() {
+			return m.firstKey();
+		}
+
+		public K last() {
+			return m.lastKey();
+		}
+
+		public K lower(K k) {
+			return m.lowerKey(k);
+		}
+
+		public K floor(K k) {
+			return m.floorKey(k);
+		}
+
+		public K ceiling(K k) {
+			return m.ceilingKey(k);
+		}
+
+		public K higher(K k) {
+			return m.higherKey(k);
+		}
+
+		public K pollFirst() {
+			Map.Entry<K, ?> e = m.pollFirstEntry();
+			return (e == null) ? null : e.getKey();
+		}
+
+		public K pollLast() {
+			Map.Entry<K, ?> e = m.pollLastEntry();
+			return (e == null) ? null : e.getKey();
+		}
+
+		public NavigableSet<K> descendingSet() {
+			return new KeySet<K>(m.descendingMap());
+		}
+
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return new KeySet<K>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+		}
+
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return new KeySet<K>(m.headMap(toElement, inclusive));
+		}
+
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return new KeySet<K>(m.tailMap(fromElement, inclusive));
+		}
+
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+
+	/**
+	 * private static final class Node<K, V>
+	 *
+	 * a node of the tree, and the entry it holds. a missing child is null
+	 * (height -1, size 0, like the virtual node of AVLTree).
+	 */
+	private static final class Node<K, V> implements Map.Entry<K, V> {
+		final K key;
+		V value;
+		Node<K, V> left, right, parent;
+		int height; // 0 for a leaf
+		int size = 1;
+
+		Node(K key, V value, Node<K, V> parent) {
+			this.key = key;
+			this.value = value;
+			this.parent = parent;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public V setValue(V value) {
+			V old = this.value;
+			this.value = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+			return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+					&& (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * private static final class Tree<K, V>
+	 *
+	 * the AVL tree shared by a map and its views
+	 */
+	private static final class Tree<K, V> {
+		final Comparator<? super K> comparator;
+		Node<K, V> root;
+		int modCount; // changes of the structure, for the fail-fast iterators
+
+		Tree(Comparator<? super K> comparator) {
+			this.comparator = comparator;
+		}
+
+		@SuppressWarnings("unchecked")
+		int compare(Object a, Object b) {
+			if (comparator != null)
+				return comparator.compare((K)a, (K)b);
+			return ((Comparable<Object>)a).compareTo(b);
+		}
+
+		int size() {
+			return size(root);
+		}
+
+		void clear() {
+			root = null;
+			modCount++;
+		}
+
+		Node<K, V> getNode(Object key) {
+			Node<K, V> node = root;
+			while (node != null) {
+				int c = compare(key, node.key);
+				if (c == 0)
+					return node;
+				node = (c < 0) ? node.left : node.right;
+			}
+			return null;
+		}
+
+		V put(K key, V value) {
+			if (root == null) {
+				compare(key, key); // type (and null) check
+				root = new Node<K, V>(key, value, null);
+				modCount++;
+				return null;
+			}
+			Node<K, V> node = root;
+			while (true) {
+				int c = compare(key, node.key);
+				if (c == 0)
+					return node.setValue(value);
+				Node<K, V> child = (c < 0) ? node.left : node.right;
+				if (child == null) {
+					if (c < 0)
+						node.left = new Node<K, V>(key, value, node);
+					else
+						node.right = new Node<K, V>(key, value, node);
+					modCount++;
+					rebalance(node);
+					return null;
+				}
+				node = child;
+			}
+		}
+
+		/**
+		 * removes node from the tree; if it has two children, its successor node
+		 * (rather than the successor's entry) takes its place
+		 */
+		void deleteNode(Node<K, V> node) {
+			Node<K, V> start; // where the rebalancing starts
+			if (node.left != null && node.right != null) {
+				Node<K, V> successor = node.right;
+				while (successor.left != null)
+					successor = successor.left;
+				Node<K, V> sucParent = successor.parent;
+				replace(successor, successor.right);
+				successor.left = node.left;
+				successor.right = node.right;
+				if (successor.left != null)
+					successor.left.parent = successor;
+				if (successor.right != null)
+					successor.right.parent = successor;
+				replace(node, successor);
+				start = (sucParent == node) ? successor : sucParent;
+			}
+			else {
+				replace(node, (node.left != null) ? node.left : node.right);
+				start = node.parent;
+			}
+			node.left = null;
+			node.right = null;
+			node.parent = null;
+			modCount++;
+			rebalance(start);
+		}
+
+		/**
+		 * puts child in the place of node under node's parent
+		 */
+		private void replace(Node<K, V> node, Node<K, V> child) {
+			Node<K, V> p = node.parent;
+			if (p == null)
+				root = child;
+			else if (p.left == node)
+				p.left = child;
+			else
+				p.right = child;
+			if (child != null)
+				child.parent = p;
+		}
+
+		Node<K, V> first() {
+			Node<K, V> node = root;
+			if (node != null)
+				while (node.left != null)
+					node = node.left;
+			return node;
+		}
+
+		Node<K, V> last() {
+			Node<K, V> node = root;
+			if (node != null)
+				while (node.right != null)
+					node = node.right;
+			return node;
+		}
+
+		/**
+		 * the node with the smallest key >= key (> key if not inclusive), or null
+		 */
+		Node<K, V> ceiling(Object key, boolean inclusive) {
+			Node<K, V> result = null;
+			Node<K, V> node = root;
+			while (node != null) {
+				int c = compare(key, node.key);
+				if (c < 0 || (c == 0 && inclusive)) {
+					result = node;
+					if (c == 0)
+						break;
+					node = node.left;
+				}
+				else {
+					node = node.right;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * the node with the largest key <= key (< key if not inclusive), or null
+		 */
+		Node<K, V> floor(Object key, boolean inclusive) {
+			Node<K, V> result = null;
+			Node<K, V> node = root;
+			while (node != null) {
+				int c = compare(key, node.key);
+				if (c > 0 || (c == 0 && inclusive)) {
+					result = node;
+					if (c == 0)
+						break;
+					node = node.right;
+				}
+				else {
+					node = node.left;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * the number of keys < key (<= key if inclusive), like AVLTree.countLess and rank
+		 */
+		int countBelow(Object key, boolean inclusive) {
+			int result = 0;
+			Node<K, V> node = root;
+			while (node != null) {
+				int c = compare(key, node.key);
+				if (c < 0 || (c == 0 && !inclusive)) {
+					node = node.left;
+				}
+				else {
+					result += size(node.left) + 1;
+					node = node.right;
+				}
+			}
+			return result;
+		}
+
+		static <K, V> Node<K, V> successor(Node<K, V> node) {
+			if (node.right != null) {
+				node = node.right;
+				while (node.left != null)
+					node = node.left;
+				return node;
+			}
+			Node<K, V> p = node.parent;
+			while (p != null && node == p.right) {
+				node = p;
+				p = p.parent;
+			}
+			return p;
+		}
+
+		static <K, V> Node<K, V> predecessor(Node<K, V> node) {
+			if (node.left != null) {
+				node = node.left;
+				while (node.right != null)
+					node = node.right;
+				return node;
+			}
+			Node<K, V> p = node.parent;
+			while (p != null && node == p.left) {
+				node = p;
+				p = p.parent;
+			}
+			return p;
+		}
+
+		/**
+		 * walks up from node to the root, updating heights and sizes and rotating where
+		 * the balance factor is +-2 (all the way up, since every size on the path changed)
+		 */
+		private void rebalance(Node<K, V> node) {
+			while (node != null) {
+				update(node);
+				int bf = height(node.left) - height(node.right);
+				if (bf > 1) {
+					if (height(node.left.left) < height(node.left.right)) // LR
+						rotateLeft(node.left);
+					node = rotateRight(node);
+				}
+				else if (bf < -1) {
+					if (height(node.right.right) < height(node.right.left)) // RL
+						rotateRight(node.right);
+					node = rotateLeft(node);
+				}
+				node = node.parent;
+			}
+		}
+
+		/**
+		 * the left child of a becomes the root of a's subtree, which it returns
+		 */
+		private Node<K, V> rotateRight(Node<K, V> a) {
+			Node<K, V> b = a.left;
+			a.left = b.right;
+			if (b.right != null)
+				b.right.parent = a;
+			replace(a, b);
+			b.right = a;
+			a.parent = b;
+			update(a);
+			update(b);
+			return b;
+		}
+
+		/**
+		 * the right child of a becomes the root of a's subtree, which it returns
+		 */
+		private Node<K, V> rotateLeft(Node<K, V> a) {
+			Node<K, V> b = a.right;
+			a.right = b.left;
+			if (b.left != null)
+				b.left.parent = a;
+			replace(a, b);
+			b.left = a;
+			a.parent = b;
+			update(a);
+			update(b);
+			return b;
+		}
+
+		private static void update(Node<?, ?> node) {
+			node.height = Math.max(height(node.left), height(node.right)) + 1;
+			node.size = size(node.left) + size(node.right) + 1;
+		}
+
+		private static int height(Node<?, ?> node) {
+			return (node == null) ? -1 : node.height;
+		}
+
+		private static int size(Node<?, ?> node) {
+			return (node == null) ? 0 : node.size;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import javax.management.ConstructorParameters;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * AVLTreeMetrics
+ * Counters and distributions of the work an AVLTree does, kept only while they are
+ * enabled (see AVLTree.enableMetrics). A tree without metrics pays one null check per
+ * operation, rotation and rebalancing walk, and nothing else.
+ *
+ * What is kept:
+ *  - the number and the latency of searches, inserts and deletes (through the public
+ *    methods; the batch and finger operations count in the rest but not here)
+ *  - the search path length of those operations: the nodes their own (timed) descent from
+ *    the root compares k with, 0 when they were answered at the minimum or maximum or from
+ *    the cache without a descent
+ *  - rotations by type, as chosen by AVLTree.rotate
+ *  - the length of every rebalancing walk of updateBalanceAndFields, in nodes
+ *  - AVLNode allocations
+ *  - the current size and height, next to the height bound of an AVL tree of that size
+ *
+ * The metrics are written by the thread which uses the tree, without synchronization.
+ * A JMX client (see register) or another thread reading them may see slightly stale,
+ * not quite consistent values; snapshot(), called by the owning thread, is exact.
+ */
+public class AVLTreeMetrics implements AVLTreeMetricsMXBean {
+
+	static final int LL = 0, LR = 1, RL = 2, RR = 3; // the rotation types, see AVLTree.rotate
+
+	private final AVLTree tree;  // the tree measured, or null for a snapshot
+	private final int size;      // the size and height of the tree when the snapshot was taken
+	private final int height;
+
+	long searches, inserts, deletes;
+	final long[] rotations = new long[4]; // by type
+	long allocations;
+
+	final Histogram searchLatency = new Histogram();
+	final Histogram insertLatency = new Histogram();
+	final Histogram deleteLatency = new Histogram();
+	final Histogram pathLength = new Histogram();
+	final Histogram fixupLength = new Histogram();
+
+	AVLTreeMetrics(AVLTree tree) {
+		this.tree = tree;
+		this.size = 0;
+		this.height = -1;
+	}
+
+	/*
+	 * a copy of the current values of metrics, with the size and height of its tree
+	 */
+	private AVLTreeMetrics(AVLTreeMetrics metrics) {
+		this.tree = null;
+		this.size = metrics.getSize();
+		this.height = metrics.getHeight();
+		this.searches = metrics.searches;
+		this.inserts = metrics.inserts;
+		this.deletes = metrics.deletes;
+		System.arraycopy(metrics.rotations, 0, this.rotations, 0, 4);
+		this.allocations = metrics.allocations;
+		this.searchLatency.copy(metrics.searchLatency);
+		this.insertLatency.copy(metrics.insertLatency);
+		this.deleteLatency.copy(metrics.deleteLatency);
+		this.pathLength.copy(metrics.pathLength);
+		this.fixupLength.copy(metrics.fixupLength);
+	}
+
+	/**
+	 * public AVLTreeMetrics snapshot()
+	 *
+	 * Returns a copy of the metrics as they are now, which the tree does not update any more
+	 * (for pull-style reporting: take a snapshot, and read or print it at leisure).
+	 */
+	public AVLTreeMetrics snapshot() {
+		return new AVLTreeMetrics(this);
+	}
+
+	/**
+	 * public ObjectName register(String name)
+	 *
+	 * registers the metrics on the platform MBean server as "AVLTree:type=Metrics,name=<name>"
+	 * and returns that name (to pass to unregister later).
+	 * throws JMException if the name is taken or the server refuses the bean
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = ObjectName.getInstance("AVLTree:type=Metrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * public static void unregister(ObjectName objectName)
+	 *
+	 * removes metrics registered under objectName (by register) from the platform MBean server
+	 */
+	public static void unregister(ObjectName objectName) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	}
+
+	public long getSearches() {
+		return searches;
+	}
+
+	public long getInserts() {
+		return inserts;
+	}
+
+	public long getDeletes() {
+		return deletes;
+	}
+
+	public long getRotationsLL() {
+		return rotations[LL];
+	}
+
+	public long getRotationsLR() {
+		return rotations[LR];
+	}
+
+	public long getRotationsRL() {
+		return rotations[RL];
+	}
+
+	public long getRotationsRR() {
+		return rotations[RR];
+	}
+
+	public long getNodeAllocations() {
+		return allocations;
+	}
+
+	public int getSize() {
+		return (tree == null) ? size : tree.size();
+	}
+
+	public int getHeight() {
+		if (tree == null)
+			return height;
+		return tree.empty() ? -1 : tree.getRoot().getHeight();
+	}
+
+	/**
+	 * public double getHeightBound()
+	 *
+	 * Returns 1.4405 log2(n + 2) - 1.3277 for the current size n: an AVL tree of n keys
+	 * has at most that height (counted in edges, like getHeight), see Knuth vol. 3, 6.2.3
+	 */
+	public double getHeightBound() {
+		return 1.4405 * Math.log(getSize() + 2) / Math.log(2) - 1.3277;
+	}
+
+	public Summary getSearchLatency() {
+		return searchLatency.summary();
+	}
+
+	public Summary getInsertLatency() {
+		return insertLatency.summary();
+	}
+
+	public Summary getDeleteLatency() {
+		return deleteLatency.summary();
+	}
+
+	public Summary getSearchPathLength() {
+		return pathLength.summary();
+	}
+
+	public Summary getFixupLength() {
+		return fixupLength.summary();
+	}
+
+	public void reset() {
+		searches = inserts = deletes = 0;
+		for (int t = 0; t < 4; t++)
+			rotations[t] = 0;
+		allocations = 0;
+		searchLatency.reset();
+		insertLatency.reset();
+		deleteLatency.reset();
+		pathLength.reset();
+		fixupLength.reset();
+	}
+
+	public String toString() {
+		return "size " + getSize() + ", height " + getHeight() + String.format(" (bound %.2f)", getHeightBound())
+				+ "\nsearches " + searches + ", inserts " + inserts + ", deletes " + deletes
+				+ "\nrotations LL " + rotations[LL] + ", LR " + rotations[LR]
+				+ ", RL " + rotations[RL] + ", RR " + rotations[RR]
+				+ "\nnode allocations " + allocations
+				+ "\nsearch latency (ns)  " + getSearchLatency()
+				+ "\ninsert latency (ns)  " + getInsertLatency()
+				+ "\ndelete latency (ns)  " + getDeleteLatency()
+				+ "\nsearch path length   " + getSearchPathLength()
+				+ "\nfixup walk length    " + getFixupLength();
+	}
+
+	/**
+	 * Histogram
+	 * A distribution of non negative values in buckets of powers of two: bucket b holds
+	 * the values of b bits, 2^(b-1) .. 2^b - 1 (and bucket 0 the zeros). Recording is a few
+	 * instructions and the percentiles are accurate to within a factor of two.
+	 */
+	static final class Histogram {
+		private final long[] buckets = new long[65];
+		private long count;
+		private long sum;
+		private long max;
+
+		void record(long value) {
+			buckets[64 - Long.numberOfLeadingZeros(value)]++;
+			count++;
+			sum += value;
+			if (value > max)
+				max = value;
+		}
+
+		/*
+		 * the upper end of the bucket holding the value of the given rank, but at most max
+		 */
+		long percentile(double p) {
+			long rank = (long)Math.ceil(p * count);
+			long seen = 0;
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b];
+				if (seen >= rank && seen > 0)
+					return (b == 0) ? 0 : Math.min(max, (b >= 63) ? Long.MAX_VALUE : (1L << b) - 1);
+			}
+			return 0;
+		}
+
+		Summary summary() {
+			double mean = (count == 0) ? 0 : (double)sum / count;
+			return new Summary(count, mean, max, percentile(0.5), percentile(0.9), percentile(0.99));
+		}
+
+		void copy(Histogram other) {
+			System.arraycopy(other.buckets, 0, buckets, 0, buckets.length);
+			count = other.count;
+			sum = other.sum;
+			max = other.max;
+		}
+
+		void reset() {
+			Arrays.fill(buckets, 0);
+			count = sum = max = 0;
+		}
+	}
+
+	/**
+	 * Summary
+	 * The count, mean, maximum and (approximate) percentiles of a distribution
+	 */
+	public static final class Summary {
+		private final long count;
+		private final double mean;
+		private final long max;
+		private final long p50, p90, p99;
+
+		@ConstructorParameters({"count", "mean", "max", "p50", "p90", "p99"})
+		public Summary(long count, double mean, long max, long p50, long p90, long p99) {
+			this.count = count;
+			this.mean = mean;
+			this.max = max;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public String toString() {
+			return String.format("count %d, mean %.1f, p50 %d, p90 %d, p99 %d, max %d", count, mean, p50, p90, p99, max);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * AVLTreeMetricsMXBean
+ * The management interface of AVLTreeMetrics, under which AVLTreeMetrics.register
+ * publishes the metrics of a tree to JMX (jconsole, VisualVM, any JMX exporter).
+ * the distributions are exported as composite data, with the fields of AVLTreeMetrics.Summary.
+ */
+public interface AVLTreeMetricsMXBean {
+
+	long getSearches();      // the number of calls to search
+	long getInserts();       // the number of calls to insert (including those of existing keys)
+	long getDeletes();       // the number of calls to delete (including those of missing keys)
+
+	long getRotationsLL();   // single right rotations
+	long getRotationsLR();   // double rotations, left then right
+	long getRotationsRL();   // double rotations, right then left
+	long getRotationsRR();   // single left rotations
+
+	long getNodeAllocations(); // AVLNode objects created by the tree
+
+	int getSize();           // the current number of keys
+	int getHeight();         // the current height of the tree (-1 if empty)
+	double getHeightBound(); // the largest height an AVL tree of getSize() keys can have
+
+	AVLTreeMetrics.Summary getSearchLatency();    // in nanoseconds
+	AVLTreeMetrics.Summary getInsertLatency();    // in nanoseconds
+	AVLTreeMetrics.Summary getDeleteLatency();    // in nanoseconds
+	AVLTreeMetrics.Summary getSearchPathLength(); // nodes compared from the root, per operation
+	AVLTreeMetrics.Summary getFixupLength();      // nodes visited by one rebalancing walk
+
+	void reset();            // sets every counter and distribution back to zero
+}
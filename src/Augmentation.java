@@ -0,0 +1,100 @@
+import java.math.BigInteger;
+
+/**
+ * Augmentation
+ * An aggregate of the items of a subtree, which AVLTree keeps in every node
+ * next to the size and the sum (see AVLTree(Augmentation...)).
+ *
+ * combine must be associative, with identity() as its neutral element, but need not be
+ * commutative: the tree always combines left subtree, node and right subtree in key order.
+ * combine is called for every node on the path of an insert or delete (and twice per
+ * rotation), so it should be cheap and should not keep references to its arguments
+ * if they are mutable.
+ */
+public interface Augmentation<A> {
+
+	/**
+	 * the aggregate of no items
+	 */
+	A identity();
+
+	/**
+	 * the aggregate of the single item (key, info)
+	 */
+	A lift(int key, String info);
+
+	/**
+	 * the aggregate of the items of left followed by the items of right
+	 */
+	A combine(A left, A right);
+
+	/**
+	 * the sum of the keys (which AVLTree also keeps itself, for sum() and less())
+	 */
+	Augmentation<Long> KEY_SUM = new Augmentation<Long>() {
+		public Long identity() {
+			return 0L;
+		}
+		public Long lift(int key, String info) {
+			return (long)key;
+		}
+		public Long combine(Long left, Long right) {
+			return left + right;
+		}
+	};
+
+	/**
+	 * the sum of the squares of the keys (with KEY_SUM and the size, gives the variance).
+	 * exact, hence a BigInteger: a square takes up to 62 bits, so a few of them overflow a
+	 * long, and a double sum would round past 2^53 and depend on the order of the additions
+	 */
+	Augmentation<BigInteger> KEY_SQUARES = new Augmentation<BigInteger>() {
+		public BigInteger identity() {
+			return BigInteger.ZERO;
+		}
+		public BigInteger lift(int key, String info) {
+			return BigInteger.valueOf((long)key * key);
+		}
+		public BigInteger combine(BigInteger left, BigInteger right) {
+			return left.add(right);
+		}
+	};
+
+	/**
+	 * the smallest info (in String order, nulls excluded), or null if there is none
+	 */
+	Augmentation<String> INFO_MIN = new Augmentation<String>() {
+		public String identity() {
+			return null;
+		}
+		public String lift(int key, String info) {
+			return info;
+		}
+		public String combine(String left, String right) {
+			if (left == null)
+				return right;
+			if (right == null)
+				return left;
+			return (left.compareTo(right) <= 0) ? left : right;
+		}
+	};
+
+	/**
+	 * the largest info (in String order, nulls excluded), or null if there is none
+	 */
+	Augmentation<String> INFO_MAX = new Augmentation<String>() {
+		public String identity() {
+			return null;
+		}
+		public String lift(int key, String info) {
+			return info;
+		}
+		public String combine(String left, String right) {
+			if (left == null)
+				return right;
+			if (right == null)
+				return left;
+			return (left.compareTo(right) >= 0) ? left : right;
+		}
+	};
+}
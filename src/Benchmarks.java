@@ -0,0 +1,1347 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Benchmarks
+ * A micro-benchmark harness for AVLTree.
+ *
+ * Unlike Measurements (which prints the rotation tables of the assignment), every
+ * benchmark here runs warmup iterations before it is measured, uses fixed seeds so
+ * that runs are comparable, runs in a forked JVM and reports the allocation rate of
+ * the measured thread next to the time per operation.
+ *
+ * Usage:
+ *   java Benchmarks [-sizes 1000,10000] [-dists uniform,zipfian] [-only insert,search]
+ *                   [-warmup 5] [-iterations 10] [-forks 1] [-jvmArgs "-Xmx8g"]
+ *                   [-out results.csv] [-baseline ../bench/baseline.csv] [-threshold 10]
+ *
+ * -forks 0 runs everything inside the current JVM.
+ * -out writes the results as csv, -baseline compares against a previous csv
+ * and marks every benchmark which got slower than the threshold (in percent).
+ * lines of the baseline starting with # are skipped, which is how rows too noisy
+ * to compare are left out (see bench/baseline.csv).
+ */
+public class Benchmarks {
+
+	private static final long SEED = 0x5DEECE66DL;
+	private static final int OPS = 1 << 20; // operations per iteration of the read benchmarks
+	private static final long MIN_ITERATION_NS = 100_000_000L; // an iteration repeats a short benchmark for at least this long
+
+	private static int[] sizes = {1000, 10000, 100000, 1000000};
+	private static List<Distribution> dists = Arrays.asList(Distribution.values());
+	private static List<String> only = null;
+	private static int warmup = 5;
+	private static int iterations = 10;
+	private static int forks = 1;
+	private static String jvmArgs = null;
+	private static String out = null;
+	private static String baseline = null;
+	private static double threshold = 10;
+	private static boolean child = false;
+
+	public static void main(String[] args) throws Exception {
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-sizes":      sizes = parseInts(args[++i]); break;
+			case "-dists":      dists = parseDistributions(args[++i]); break;
+			case "-only":       only = Arrays.asList(args[++i].split(",")); break;
+			case "-warmup":     warmup = Integer.parseInt(args[++i]); break;
+			case "-iterations": iterations = Integer.parseInt(args[++i]); break;
+			case "-forks":      forks = Integer.parseInt(args[++i]); break;
+			case "-jvmArgs":    jvmArgs = args[++i]; break;
+			case "-out":        out = args[++i]; break;
+			case "-baseline":   baseline = args[++i]; break;
+			case "-threshold":  threshold = Double.parseDouble(args[++i]); break;
+			case "-child":      child = true; break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		Map<String, Result> previous = (baseline != null) ? readResults(baseline) : new HashMap<String, Result>();
+		List<Result> results = new ArrayList<Result>();
+		if (!child) {
+			String[] title = {"benchmark", "size", "dist", "ns/op", "error", "B/op", "gc", "baseline"};
+			System.out.format("%-20s%-10s%-12s%-14s%-12s%-12s%-6s%-12s\n", (Object[])title);
+		}
+
+		for (Benchmark b : benchmarks()) {
+			if (only != null && !only.contains(b.name))
+				continue;
+			for (int n : sizes) {
+				for (Distribution d : b.distributions()) {
+					if (!dists.contains(d))
+						continue;
+					Result r = (forks > 0 && !child) ? fork(b, n, d) : measure(b, n, d);
+					if (child) {
+						System.out.println("RESULT " + r.toCsv());
+						continue;
+					}
+					results.add(r);
+					print(r, previous.get(r.id()));
+				}
+			}
+		}
+
+		if (out != null) {
+			PrintWriter w = new PrintWriter(out);
+			for (Result r : results)
+				w.println(r.toCsv());
+			w.close();
+		}
+	}
+
+	/**
+	 * The benchmarks of AVLTree
+	 */
+	private static List<Benchmark> benchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		list.add(new Benchmark("insert", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.tree = new AVLTree();
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.tree.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("finger-insert", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.tree = new AVLTree();
+			}
+			long run(State s) {
+				AVLTree.Finger finger = s.tree.fingerAtMaximum();
+				for (int k : s.keys)
+					finger.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("fromSorted", Distribution.SEQUENTIAL) {
+			void setupTrial(State s) {
+				s.infos = new String[s.n];
+				Arrays.fill(s.infos, ":)");
+			}
+			long run(State s) {
+				s.tree = AVLTree.fromSorted(s.keys, s.infos);
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("delete", Distribution.ORDERS) {
+			void setupTrial(State s) {
+				s.build = Distribution.UNIFORM.order(s.n, new Random(SEED + 1));
+			}
+			void setupIteration(State s) {
+				s.tree = build(s.build);
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.tree.delete(k);
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("search", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.tree.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		// the same as insert and search with metrics enabled, for their overhead
+		// (the plain benchmarks, against a baseline, show the cost of the disabled checks)
+		list.add(new Benchmark("insert-metrics", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.tree = new AVLTree();
+				s.tree.enableMetrics();
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.tree.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("search-metrics", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.tree.enableMetrics();
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.tree.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(new Benchmark("search-cached", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.tree.enableCache(1 << 14);
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.tree.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(new Benchmark("select", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s); // the keys are 1..n, so every accessed key is also a rank
+			}
+			long run(State s) {
+				int found = 0;
+				for (int i : s.accesses)
+					if (s.tree.select(i) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(new Benchmark("select-batched", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				for (int j = 0; j < s.accesses.length; j += 1024)
+					Arrays.sort(s.accesses, j, Math.min(j + 1024, s.accesses.length));
+			}
+			long run(State s) {
+				int found = 0;
+				for (int j = 0; j < s.accesses.length; j += 1024) {
+					String[] infos = s.tree.select(Arrays.copyOfRange(s.accesses, j, Math.min(j + 1024, s.accesses.length)));
+					if (infos[infos.length - 1] != null)
+						found++;
+				}
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		// percentiles: the ranks of 1% .. 99% of the size, each selected on its own
+		list.add(new Benchmark("select-percentiles", Distribution.UNIFORM) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.batch = new int[99];
+				for (int p = 1; p <= 99; p++)
+					s.batch[p - 1] = (int)Math.max(1, (long)s.n * p / 100);
+			}
+			long run(State s) {
+				int found = 0;
+				for (int rep = 0; rep < OPS / 99; rep++)
+					for (int i : s.batch)
+						if (s.tree.select(i) != null)
+							found++;
+				s.sink = found;
+				return (long)(OPS / 99) * 99;
+			}
+		});
+
+		list.add(new Benchmark("less", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+			}
+			long run(State s) {
+				long sum = 0;
+				for (int k : s.accesses)
+					sum += s.tree.less(k);
+				s.sink = sum;
+				return s.accesses.length;
+			}
+		});
+
+		// the same lookups on a frozen copy in van Emde Boas layout
+
+		list.add(new Benchmark("frozen-search", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.frozen = s.tree.freeze();
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.frozen.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(new Benchmark("frozen-less", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.frozen = s.tree.freeze();
+			}
+			long run(State s) {
+				long sum = 0;
+				for (int k : s.accesses)
+					sum += s.frozen.less(k);
+				s.sink = sum;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(new Benchmark("rank", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+			}
+			long run(State s) {
+				int sum = 0;
+				for (int k : s.accesses)
+					sum += s.tree.rank(k);
+				s.sink = sum;
+				return s.accesses.length;
+			}
+		});
+
+		// the same queries as rank, sorted in batches of 1024 and answered by the batched rank
+		list.add(new Benchmark("rank-batched", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				for (int j = 0; j < s.accesses.length; j += 1024)
+					Arrays.sort(s.accesses, j, Math.min(j + 1024, s.accesses.length));
+			}
+			long run(State s) {
+				int sum = 0;
+				for (int j = 0; j < s.accesses.length; j += 1024) {
+					int[] ranks = s.tree.rank(Arrays.copyOfRange(s.accesses, j, Math.min(j + 1024, s.accesses.length)));
+					sum += ranks[ranks.length - 1];
+				}
+				s.sink = sum;
+				return s.accesses.length;
+			}
+		});
+
+		// the even keys inserted into a tree of the odd keys, one by one and as a sorted batch
+
+		list.add(new Benchmark("insert-interleaved", Distribution.SEQUENTIAL) {
+			void setupTrial(State s) {
+				splitByParity(s);
+			}
+			void setupIteration(State s) {
+				s.tree = AVLTree.fromSorted(s.build, s.infos);
+			}
+			long run(State s) {
+				for (int k : s.batch)
+					s.tree.insert(k, ":)");
+				return s.batch.length;
+			}
+		});
+
+		list.add(new Benchmark("insertAll", Distribution.SEQUENTIAL) {
+			void setupTrial(State s) {
+				splitByParity(s);
+			}
+			void setupIteration(State s) {
+				s.tree = AVLTree.fromSorted(s.build, s.infos);
+			}
+			long run(State s) {
+				s.sink = s.tree.insertAll(s.batch, s.infos);
+				return s.batch.length;
+			}
+		});
+
+		// a tree which keeps the long key sum as an Augmentation, for its cost on insert and for fold
+
+		list.add(new Benchmark("insert-augmented", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.tree = new AVLTree(Augmentation.KEY_SUM);
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.tree.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("fold-100", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.tree = new AVLTree(Augmentation.KEY_SUM);
+				for (int k : s.build)
+					s.tree.insert(k, ":)");
+			}
+			long run(State s) {
+				long sum = 0;
+				for (int k : s.accesses)
+					sum += s.tree.fold(Augmentation.KEY_SUM, k, k + 99);
+				s.sink = sum;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(new Benchmark("keysToArray", Distribution.UNIFORM) {
+			void setupTrial(State s) {
+				s.tree = build(s.keys);
+			}
+			long run(State s) {
+				s.sink = s.tree.keysToArray().length;
+				return 1;
+			}
+		});
+
+		list.add(new Benchmark("infoToArray", Distribution.UNIFORM) {
+			void setupTrial(State s) {
+				s.tree = build(s.keys);
+			}
+			long run(State s) {
+				s.sink = s.tree.infoToArray().length;
+				return 1;
+			}
+		});
+
+		list.add(new Benchmark("range-100", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+			}
+			long run(State s) {
+				long sum = 0;
+				for (int k : s.accesses) {
+					AVLTree.Cursor c = s.tree.rangeIterator(k, k + 99);
+					while (c.hasNext())
+						sum += c.nextInt();
+				}
+				s.sink = sum;
+				return s.accesses.length;
+			}
+		});
+
+		list.add(mix("mix-90/10", 90));
+		list.add(mix("mix-50/50", 50));
+
+		// union and bulk load, in the calling thread and on pools of 1, 2, 4, ... threads
+		// (up to the number of cores), for the speedup by core count
+
+		list.add(union("union", 0));
+		for (int p = 1; p <= Runtime.getRuntime().availableProcessors(); p *= 2)
+			list.add(union("union/p" + p, p));
+		for (int p = 1; p <= Runtime.getRuntime().availableProcessors(); p *= 2)
+			list.add(parallelFromSorted("fromSorted/p" + p, p));
+
+		// the array backed IntAVLTree, for comparison with insert, delete and search above
+
+		list.add(new Benchmark("int-insert", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.intTree = new IntAVLTree();
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.intTree.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("int-delete", Distribution.ORDERS) {
+			void setupTrial(State s) {
+				s.build = Distribution.UNIFORM.order(s.n, new Random(SEED + 1));
+			}
+			void setupIteration(State s) {
+				s.intTree = buildInt(s.build);
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.intTree.delete(k);
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("int-search", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.intTree = buildInt(s.build); // same insertion order as the AVLTree
+				s.tree = null;
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.intTree.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		// AVLTreeMap against java.util.TreeMap, and the long keyed LongAVLTree against insert and search
+
+		list.add(mapPut("map-put", false));
+		list.add(mapPut("treemap-put", true));
+		list.add(mapGet("map-get", false));
+		list.add(mapGet("treemap-get", true));
+
+		list.add(new Benchmark("long-insert", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.longTree = new LongAVLTree<String>();
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.longTree.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("long-search", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.longTree = new LongAVLTree<String>(s.n);
+				for (int k : s.build)
+					s.longTree.insert(k, ":)");
+				s.tree = null;
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.longTree.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		// PersistentAVLTree, where every insert copies its path
+
+		list.add(new Benchmark("persistent-insert", Distribution.ORDERS) {
+			void setupIteration(State s) {
+				s.persistentTree = new PersistentAVLTree();
+			}
+			long run(State s) {
+				for (int k : s.keys)
+					s.persistentTree = s.persistentTree.insert(k, ":)");
+				return s.keys.length;
+			}
+		});
+
+		list.add(new Benchmark("persistent-search", Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.persistentTree = new PersistentAVLTree();
+				for (int k : s.build)
+					s.persistentTree = s.persistentTree.insert(k, ":)");
+				s.tree = null;
+			}
+			long run(State s) {
+				int found = 0;
+				for (int k : s.accesses)
+					if (s.persistentTree.search(k) != null)
+						found++;
+				s.sink = found;
+				return s.accesses.length;
+			}
+		});
+
+		// ConcurrentAVLTree against an AVLTree behind one lock, 90% searches on 1, 4, 16 and 64 threads.
+		// ns/op is wall time over the operations of all threads, so it falls as throughput scales
+
+		for (int t : new int[] {1, 4, 16, 64}) {
+			list.add(concurrentMix("concurrent/t" + t, t, false));
+			list.add(concurrentMix("locked/t" + t, t, true));
+		}
+
+		// the same mix with every thread writing any key, checked for balance and size during and after the run
+
+		for (int t : new int[] {4, 16, 64})
+			list.add(contended("contended/t" + t, t));
+
+		return list;
+	}
+
+	/**
+	 * mix-90/10 split over the given number of threads, on a ConcurrentAVLTree or on an AVLTree
+	 * guarded by its own monitor (locked). the searches are dealt out round robin, but a write
+	 * of key k goes to thread k % threads, which owns the key: the writes keep their full 10%,
+	 * and as the writes of a key run in order in one thread, the final content of the tree is
+	 * known. it is checked after every run (before the next one, and at the end of the trial).
+	 * allocation is only counted for the measuring thread.
+	 */
+	private static Benchmark concurrentMix(String name, final int threads, final boolean locked) {
+		return new Benchmark(name, Distribution.values()) {
+			void setupTrial(State s) {
+				Random rnd = new Random(SEED + 2);
+				int[] all = Distribution.UNIFORM.order(2 * s.n, rnd);
+				s.build = Arrays.copyOf(all, s.n);
+				s.accesses = s.dist.accesses(all, OPS, rnd);
+				s.writes = new boolean[OPS];
+				for (int i = 0; i < OPS; i++)
+					s.writes[i] = rnd.nextInt(100) >= 90;
+				s.owned = deal(s, threads, true);
+				boolean[] present = new boolean[2 * s.n + 1];
+				for (int k : s.build)
+					present[k] = true;
+				for (int i = 0; i < OPS; i++)
+					if (s.writes[i])
+						present[s.accesses[i]] = !present[s.accesses[i]];
+				int count = 0;
+				for (boolean p : present)
+					if (p)
+						count++;
+				s.keys = new int[count]; // the expected keys after an iteration
+				for (int k = 1, j = 0; k < present.length; k++)
+					if (present[k])
+						s.keys[j++] = k;
+				s.executor = newExecutor(threads);
+			}
+			void setupIteration(State s) {
+				verify(s);
+				if (locked) {
+					s.tree = build(s.build);
+				}
+				else {
+					s.concurrentTree = new ConcurrentAVLTree();
+					for (int k : s.build)
+						s.concurrentTree.insert(k, ":)");
+				}
+			}
+			void tearDownTrial(State s) {
+				try {
+					verify(s); // the last run
+				}
+				finally {
+					s.executor.shutdown();
+				}
+			}
+			private void verify(State s) {
+				if (locked) {
+					if (s.tree != null && (s.tree.size() != s.keys.length || !Arrays.equals(s.tree.keysToArray(), s.keys)))
+						throw new IllegalStateException(name + ": wrong keys after a locked run");
+				}
+				else if (s.concurrentTree != null) {
+					if (s.concurrentTree.size() != s.keys.length || !Arrays.equals(s.concurrentTree.keysToArray(), s.keys))
+						throw new IllegalStateException(name + ": wrong keys after a concurrent run");
+					s.concurrentTree.checkInvariants();
+				}
+			}
+			long run(final State s) {
+				List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+				for (int t = 0; t < threads; t++) {
+					final int[] ops = s.owned[t];
+					tasks.add(new Callable<Integer>() {
+						public Integer call() {
+							return locked ? lockedOps(s.tree, s, ops) : concurrentOps(s.concurrentTree, s, ops, 0);
+						}
+					});
+				}
+				s.sink = invokeAll(s, tasks);
+				return s.accesses.length;
+			}
+		};
+	}
+
+	/**
+	 * mix-90/10 on a ConcurrentAVLTree, with the operations dealt out round robin, so that all
+	 * threads write the same keys at the same time. the final content then depends on the
+	 * interleaving (a delete which misses is followed by an insert, which another thread may
+	 * beat), so what is checked is the structure: thread 0 stops the tree checks times during
+	 * its share of a run (ConcurrentAVLTree.checkInvariants takes the gate of the writers, so it
+	 * sees the tree between writes: balanced, and size() equal to the number of items), and the
+	 * tree is checked again after every run. ns/op includes those checks.
+	 */
+	private static Benchmark contended(String name, final int threads) {
+		final int checks = 4;
+		return new Benchmark(name, Distribution.values()) {
+			void setupTrial(State s) {
+				Random rnd = new Random(SEED + 2);
+				int[] all = Distribution.UNIFORM.order(2 * s.n, rnd);
+				s.build = Arrays.copyOf(all, s.n);
+				s.accesses = s.dist.accesses(all, OPS, rnd);
+				s.writes = new boolean[OPS];
+				for (int i = 0; i < OPS; i++)
+					s.writes[i] = rnd.nextInt(100) >= 90;
+				s.owned = deal(s, threads, false);
+				s.executor = newExecutor(threads);
+			}
+			void setupIteration(State s) {
+				if (s.concurrentTree != null)
+					s.concurrentTree.checkInvariants();
+				s.concurrentTree = new ConcurrentAVLTree();
+				for (int k : s.build)
+					s.concurrentTree.insert(k, ":)");
+			}
+			void tearDownTrial(State s) {
+				try {
+					if (s.concurrentTree != null)
+						s.concurrentTree.checkInvariants(); // the last run
+				}
+				finally {
+					s.executor.shutdown();
+				}
+			}
+			long run(final State s) {
+				List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+				for (int t = 0; t < threads; t++) {
+					final int[] ops = s.owned[t];
+					final int checkEvery = (t == 0) ? Math.max(ops.length / (checks + 1), 1) : 0;
+					tasks.add(new Callable<Integer>() {
+						public Integer call() {
+							return concurrentOps(s.concurrentTree, s, ops, checkEvery);
+						}
+					});
+				}
+				s.sink = invokeAll(s, tasks);
+				return s.accesses.length;
+			}
+		};
+	}
+
+	/**
+	 * the indexes of the operations of each of the given number of threads: the searches
+	 * round robin, and the writes either round robin too, or (owned) by their key
+	 */
+	private static int[][] deal(State s, int threads, boolean owned) {
+		int[] counts = new int[threads];
+		int[] thread = new int[s.accesses.length];
+		for (int i = 0; i < s.accesses.length; i++) {
+			thread[i] = (owned && s.writes[i]) ? Math.floorMod(s.accesses[i], threads) : i % threads;
+			counts[thread[i]]++;
+		}
+		int[][] ops = new int[threads][];
+		for (int t = 0; t < threads; t++)
+			ops[t] = new int[counts[t]];
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < s.accesses.length; i++)
+			ops[thread[i]][counts[thread[i]]++] = i;
+		return ops;
+	}
+
+	private static ExecutorService newExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * runs the tasks on the executor and returns the sum of their results
+	 */
+	private static int invokeAll(State s, List<Callable<Integer>> tasks) {
+		int found = 0;
+		try {
+			for (Future<Integer> f : s.executor.invokeAll(tasks))
+				found += f.get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+		return found;
+	}
+
+	/*
+	 * the operations ops of the mix on a ConcurrentAVLTree, checking the tree after every
+	 * checkEvery of them (never, for 0)
+	 */
+	private static int concurrentOps(ConcurrentAVLTree tree, State s, int[] ops, int checkEvery) {
+		int found = 0;
+		for (int j = 0; j < ops.length; j++) {
+			int i = ops[j];
+			if (checkEvery > 0 && j > 0 && j % checkEvery == 0)
+				tree.checkInvariants();
+			int k = s.accesses[i];
+			if (!s.writes[i]) {
+				if (tree.search(k) != null)
+					found++;
+			} else if (tree.delete(k) == -1) {
+				tree.insert(k, ":)");
+			}
+		}
+		return found;
+	}
+
+	private static int lockedOps(AVLTree tree, State s, int[] ops) {
+		int found = 0;
+		for (int i : ops) {
+			int k = s.accesses[i];
+			synchronized (tree) {
+				if (!s.writes[i]) {
+					if (tree.search(k) != null)
+						found++;
+				} else if (tree.delete(k) == -1) {
+					tree.insert(k, ":)");
+				}
+			}
+		}
+		return found;
+	}
+
+	private static NavigableMap<Integer, String> newMap(boolean treeMap) {
+		return treeMap ? new TreeMap<Integer, String>() : new AVLTreeMap<Integer, String>();
+	}
+
+	private static Benchmark mapPut(String name, final boolean treeMap) {
+		return new Benchmark(name, Distribution.ORDERS) {
+			void setupTrial(State s) {
+				s.boxedKeys = new Integer[s.n];
+				for (int j = 0; j < s.n; j++)
+					s.boxedKeys[j] = s.keys[j];
+			}
+			void setupIteration(State s) {
+				s.map = newMap(treeMap);
+			}
+			long run(State s) {
+				for (Integer k : s.boxedKeys)
+					s.map.put(k, ":)");
+				return s.boxedKeys.length;
+			}
+		};
+	}
+
+	private static Benchmark mapGet(String name, final boolean treeMap) {
+		return new Benchmark(name, Distribution.values()) {
+			void setupTrial(State s) {
+				buildForReads(s);
+				s.map = newMap(treeMap);
+				for (int k : s.build)
+					s.map.put(k, ":)");
+				s.tree = null;
+				s.boxedKeys = new Integer[s.accesses.length]; // boxed up front, as a map user would have them
+				for (int j = 0; j < s.accesses.length; j++)
+					s.boxedKeys[j] = s.accesses[j];
+			}
+			long run(State s) {
+				int found = 0;
+				for (Integer k : s.boxedKeys)
+					if (s.map.get(k) != null)
+						found++;
+				s.sink = found;
+				return s.boxedKeys.length;
+			}
+		};
+	}
+
+	/**
+	 * a read/write mix over a tree which holds half of the keys 1..2n.
+	 * a write deletes the accessed key if it is in the tree, and inserts it otherwise,
+	 * so the size of the tree stays around n.
+	 */
+	private static Benchmark mix(String name, final int readPercent) {
+		return new Benchmark(name, Distribution.values()) {
+			void setupTrial(State s) {
+				Random rnd = new Random(SEED + 2);
+				int[] all = Distribution.UNIFORM.order(2 * s.n, rnd);
+				s.tree = build(Arrays.copyOf(all, s.n));
+				s.accesses = s.dist.accesses(all, OPS, rnd);
+				s.writes = new boolean[OPS];
+				for (int i = 0; i < OPS; i++)
+					s.writes[i] = rnd.nextInt(100) >= readPercent;
+			}
+			long run(State s) {
+				int found = 0;
+				for (int i = 0; i < s.accesses.length; i++) {
+					int k = s.accesses[i];
+					if (!s.writes[i]) {
+						if (s.tree.search(k) != null)
+							found++;
+					} else if (s.tree.delete(k) == -1) {
+						s.tree.insert(k, ":)");
+					}
+				}
+				s.sink = found;
+				return s.accesses.length;
+			}
+		};
+	}
+
+	/**
+	 * the union of the multiples of 2 and the multiples of 3 (n of each),
+	 * on a pool of the given parallelism, or in the calling thread for 0
+	 */
+	private static Benchmark union(String name, final int parallelism) {
+		return new Benchmark(name, Distribution.UNIFORM) {
+			void setupTrial(State s) {
+				s.pool = (parallelism > 0) ? new ForkJoinPool(parallelism) : null;
+				s.keys = new int[s.n];
+				s.build = new int[s.n];
+				for (int i = 0; i < s.n; i++) {
+					s.keys[i] = 2 * (i + 1);
+					s.build[i] = 3 * (i + 1);
+				}
+				s.infos = new String[s.n];
+				Arrays.fill(s.infos, ":)");
+			}
+			void setupIteration(State s) {
+				s.tree = AVLTree.fromSorted(s.keys, s.infos);
+				s.other = AVLTree.fromSorted(s.build, s.infos);
+			}
+			long run(State s) {
+				s.tree = (s.pool == null) ? AVLTree.union(s.tree, s.other) : AVLTree.union(s.tree, s.other, s.pool);
+				return 2L * s.n;
+			}
+			void tearDownTrial(State s) {
+				if (s.pool != null)
+					s.pool.shutdown();
+			}
+		};
+	}
+
+	private static Benchmark parallelFromSorted(String name, final int parallelism) {
+		return new Benchmark(name, Distribution.SEQUENTIAL) {
+			void setupTrial(State s) {
+				s.pool = new ForkJoinPool(parallelism);
+				s.infos = new String[s.n];
+				Arrays.fill(s.infos, ":)");
+			}
+			long run(State s) {
+				s.tree = AVLTree.fromSorted(s.keys, s.infos, s.pool);
+				return s.keys.length;
+			}
+			void tearDownTrial(State s) {
+				s.pool.shutdown();
+			}
+		};
+	}
+
+	private static AVLTree build(int[] keys) {
+		AVLTree tree = new AVLTree();
+		for (int k : keys)
+			tree.insert(k, ":)");
+		return tree;
+	}
+
+	/*
+	 * the odd keys of 1..n to build, the even ones (sorted) to insert, and infos for both
+	 * (for an odd n, the key n is left out so both halves have the same length)
+	 */
+	private static void splitByParity(State s) {
+		s.build = new int[s.n / 2];
+		s.batch = new int[s.n / 2];
+		for (int j = 0; j < s.build.length; j++)
+			s.build[j] = 2 * j + 1;
+		for (int j = 0; j < s.batch.length; j++)
+			s.batch[j] = 2 * j + 2;
+		s.infos = new String[s.build.length];
+		Arrays.fill(s.infos, ":)");
+	}
+
+	private static IntAVLTree buildInt(int[] keys) {
+		IntAVLTree tree = new IntAVLTree(keys.length);
+		for (int k : keys)
+			tree.insert(k, ":)");
+		return tree;
+	}
+
+	/**
+	 * builds a tree of the keys 1..n in uniform random order, and draws the accessed keys
+	 * from the benchmark's distribution over that insertion order (so zipfian hot keys
+	 * are spread over the whole tree instead of being the smallest keys).
+	 */
+	private static void buildForReads(State s) {
+		Random rnd = new Random(SEED + 3);
+		int[] keys = Distribution.UNIFORM.order(s.n, rnd);
+		s.build = keys;
+		s.tree = build(keys);
+		s.accesses = s.dist.accesses(keys, OPS, rnd);
+	}
+
+	/**
+	 * runs warmup and measured iterations of one benchmark in this JVM
+	 */
+	private static Result measure(Benchmark b, int n, Distribution d) {
+		State s = new State();
+		s.n = n;
+		s.dist = d;
+		s.keys = d.order(n, new Random(SEED));
+		b.setupTrial(s);
+		try {
+			for (int i = 0; i < warmup; i++) {
+				long time = 0;
+				while (time < MIN_ITERATION_NS) {
+					b.setupIteration(s);
+					long start = System.nanoTime();
+					b.run(s);
+					time += System.nanoTime() - start;
+				}
+			}
+
+			// an iteration runs the benchmark (each time after its untimed setupIteration) until
+			// it has been timed for MIN_ITERATION_NS, so that a run of a few microseconds, like
+			// insert into an empty tree of 1e3 keys or a single keysToArray, is not lost in the
+			// noise of the timer, the JIT and the GC. only the runs themselves are counted.
+			double[] nsPerOp = new double[iterations];
+			long bytes = 0;
+			long ops = 0;
+			long gcs = 0;
+			for (int i = 0; i < iterations; i++) {
+				long time = 0;
+				long count = 0;
+				long gc0 = gcCount();
+				while (time < MIN_ITERATION_NS) {
+					b.setupIteration(s);
+					long alloc0 = allocatedBytes();
+					long start = System.nanoTime();
+					count += b.run(s);
+					time += System.nanoTime() - start;
+					bytes += allocatedBytes() - alloc0;
+				}
+				gcs += gcCount() - gc0; // also those of the setups, which cannot be told apart
+				ops += count;
+				nsPerOp[i] = (double)time / count;
+			}
+
+			double mean = 0;
+			for (double x : nsPerOp)
+				mean += x;
+			mean /= iterations;
+			double var = 0;
+			for (double x : nsPerOp)
+				var += (x - mean) * (x - mean);
+			double error = (iterations > 1) ? Math.sqrt(var / (iterations - 1)) : 0;
+
+			return new Result(b.name, n, d.label, mean, error, (double)bytes / ops, gcs);
+		}
+		finally {
+			b.tearDownTrial(s);
+		}
+	}
+
+	/**
+	 * runs one benchmark in freshly started JVMs, so that the JIT profile of one
+	 * benchmark does not leak into the next one. returns the iterations of all forks
+	 * pooled, as if they had been measured in one run (see pool); a JIT decision which
+	 * differs between forks then shows in the error, rather than being hidden by
+	 * keeping the fastest fork.
+	 */
+	private static Result fork(Benchmark b, int n, Distribution d) throws IOException, InterruptedException {
+		List<Result> results = new ArrayList<Result>();
+		for (int f = 0; f < forks; f++) {
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			if (jvmArgs != null)
+				cmd.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+			cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Benchmarks", "-child",
+					"-only", b.name, "-sizes", Integer.toString(n), "-dists", d.label,
+					"-warmup", Integer.toString(warmup), "-iterations", Integer.toString(iterations)));
+
+			Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line;
+			Result result = null;
+			while ((line = r.readLine()) != null) {
+				if (line.startsWith("RESULT "))
+					result = Result.fromCsv(line.substring("RESULT ".length()));
+				else
+					System.out.println(line);
+			}
+			if (p.waitFor() != 0 || result == null)
+				throw new IllegalStateException("fork of " + b.name + " failed");
+			results.add(result);
+		}
+		return pool(results);
+	}
+
+	/**
+	 * the mean and the sample standard deviation of the iterations of all results, each of
+	 * them of the same number of iterations, from their means and errors: the variance
+	 * within the forks plus the variance of their means. B/op is averaged, gcs are added up.
+	 */
+	private static Result pool(List<Result> results) {
+		int k = results.size();
+		double mean = 0, bytesPerOp = 0;
+		long gcs = 0;
+		for (Result r : results) {
+			mean += r.nsPerOp / k;
+			bytesPerOp += r.bytesPerOp / k;
+			gcs += r.gcs;
+		}
+		double squares = 0; // the sum of the squared deviations of all iterations from mean
+		for (Result r : results)
+			squares += (iterations - 1) * r.error * r.error + iterations * (r.nsPerOp - mean) * (r.nsPerOp - mean);
+		long total = (long)k * iterations;
+		double error = (total > 1) ? Math.sqrt(squares / (total - 1)) : 0;
+		Result first = results.get(0);
+		return new Result(first.benchmark, first.size, first.dist, mean, error, bytesPerOp, gcs);
+	}
+
+	private static void print(Result r, Result previous) {
+		String delta = "";
+		if (previous != null) {
+			double change = 100 * (r.nsPerOp - previous.nsPerOp) / previous.nsPerOp;
+			delta = String.format("%+.1f%%", change);
+			if (change > threshold && r.nsPerOp - r.error > previous.nsPerOp + previous.error)
+				delta += " REGRESSION";
+		}
+		System.out.format("%-20s%-10d%-12s%-14.2f%-12.2f%-12.1f%-6d%-12s\n",
+				r.benchmark, r.size, r.dist, r.nsPerOp, r.error, r.bytesPerOp, r.gcs, delta);
+	}
+
+	private static Map<String, Result> readResults(String file) throws IOException {
+		Map<String, Result> results = new HashMap<String, Result>();
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = r.readLine()) != null) {
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			Result result = Result.fromCsv(line);
+			results.put(result.id(), result);
+		}
+		r.close();
+		return results;
+	}
+
+	// looked up once: ManagementFactory.getThreadMXBean() itself allocates (816 bytes on JDK 17)
+	private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0);
+		return count;
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = (int)Double.parseDouble(parts[i]); // allows 1e6
+		return result;
+	}
+
+	private static List<Distribution> parseDistributions(String list) {
+		List<Distribution> result = new ArrayList<Distribution>();
+		for (String label : list.split(","))
+			result.add(Distribution.byLabel(label));
+		return result;
+	}
+
+	/**
+	 * The key distributions.
+	 * order(n) is the order in which the keys 1..n are inserted or deleted,
+	 * accesses(keys, count) is a stream of looked up keys.
+	 */
+	enum Distribution {
+		UNIFORM("uniform"), SEQUENTIAL("sequential"), ZIPFIAN("zipfian"), ZIGZAG("zigzag");
+
+		// distinct keys are needed for insert and delete, so zipfian only applies to accesses
+		static final Distribution[] ORDERS = {UNIFORM, SEQUENTIAL, ZIGZAG};
+
+		final String label;
+
+		Distribution(String label) {
+			this.label = label;
+		}
+
+		static Distribution byLabel(String label) {
+			for (Distribution d : values())
+				if (d.label.equals(label))
+					return d;
+			throw new IllegalArgumentException("unknown distribution " + label);
+		}
+
+		int[] order(int n, Random rnd) {
+			int[] keys = new int[n];
+			switch (this) {
+			case SEQUENTIAL:
+				for (int i = 0; i < n; i++)
+					keys[i] = i + 1;
+				break;
+			case ZIGZAG: // 1, n, 2, n-1, ... rotates at both ends of the tree
+				for (int i = 0, lo = 1, hi = n; i < n; i++)
+					keys[i] = (i % 2 == 0) ? lo++ : hi--;
+				break;
+			default:
+				for (int i = 0; i < n; i++)
+					keys[i] = i + 1;
+				for (int i = n - 1; i > 0; i--) { // Fisher-Yates shuffle
+					int j = rnd.nextInt(i + 1);
+					int tmp = keys[i];
+					keys[i] = keys[j];
+					keys[j] = tmp;
+				}
+			}
+			return keys;
+		}
+
+		int[] accesses(int[] keys, int count, Random rnd) {
+			int n = keys.length;
+			int[] result = new int[count];
+			Zipf zipf = (this == ZIPFIAN) ? new Zipf(n, 0.99) : null;
+			int[] sorted = (this == SEQUENTIAL || this == ZIGZAG) ? sorted(keys) : null;
+			for (int i = 0; i < count; i++) {
+				switch (this) {
+				case SEQUENTIAL:
+					result[i] = sorted[i % n];
+					break;
+				case ZIGZAG:
+					int j = i % n;
+					result[i] = sorted[(j % 2 == 0) ? j / 2 : n - 1 - j / 2];
+					break;
+				case ZIPFIAN:
+					result[i] = keys[zipf.next(rnd)];
+					break;
+				default:
+					result[i] = keys[rnd.nextInt(n)];
+				}
+			}
+			return result;
+		}
+
+		private static int[] sorted(int[] keys) {
+			int[] copy = keys.clone();
+			Arrays.sort(copy);
+			return copy;
+		}
+	}
+
+	/**
+	 * Zipfian ranks in [0, n), after Gray et al. "Quickly Generating Billion-Record Synthetic Databases"
+	 */
+	static class Zipf {
+		private final int n;
+		private final double theta, alpha, zetan, eta;
+
+		Zipf(int n, double theta) {
+			this.n = n;
+			this.theta = theta;
+			this.alpha = 1 / (1 - theta);
+			double zeta = 0;
+			for (int i = 1; i <= n; i++)
+				zeta += 1 / Math.pow(i, theta);
+			this.zetan = zeta;
+			double zeta2 = 1 + 1 / Math.pow(2, theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		int next(Random rnd) {
+			double u = rnd.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1)
+				return 0;
+			if (uz < 1 + Math.pow(0.5, theta))
+				return Math.min(1, n - 1);
+			return Math.min((int)(n * Math.pow(eta * u - eta + 1, alpha)), n - 1);
+		}
+	}
+
+	/**
+	 * one benchmark: setupTrial runs once before the warmup, setupIteration (untimed)
+	 * before every run, and run returns the number of operations it executed.
+	 * an iteration calls run once, or more often if it takes less than MIN_ITERATION_NS.
+	 * tearDownTrial runs once after the last iteration, also if the trial failed
+	 */
+	static abstract class Benchmark {
+		final String name;
+		private final Distribution[] distributions;
+
+		Benchmark(String name, Distribution... distributions) {
+			this.name = name;
+			this.distributions = distributions;
+		}
+
+		Distribution[] distributions() {
+			return distributions;
+		}
+
+		void setupTrial(State s) {
+		}
+
+		void setupIteration(State s) {
+		}
+
+		void tearDownTrial(State s) {
+		}
+
+		abstract long run(State s);
+	}
+
+	/**
+	 * the state a benchmark works on
+	 */
+	static class State {
+		int n;
+		Distribution dist;
+		int[] keys;     // 1..n in the order of the distribution
+		int[] build;    // insertion order of the initial tree, if it differs from keys
+		int[] accesses; // looked up keys
+		int[] batch;    // sorted keys for the batch operations
+		String[] infos;
+		boolean[] writes;
+		int[][] owned;  // by thread, the indexes of the operations it runs
+		AVLTree tree;
+		AVLTree other;
+		IntAVLTree intTree;
+		ConcurrentAVLTree concurrentTree;
+		PersistentAVLTree persistentTree;
+		FrozenAVLIndex frozen;
+		LongAVLTree<String> longTree;
+		NavigableMap<Integer, String> map;
+		Integer[] boxedKeys;
+		ForkJoinPool pool;
+		ExecutorService executor;
+		long sink;      // keeps results alive so the JIT does not remove the measured calls
+	}
+
+	static class Result {
+		final String benchmark;
+		final int size;
+		final String dist;
+		final double nsPerOp, error, bytesPerOp;
+		final long gcs;
+
+		Result(String benchmark, int size, String dist, double nsPerOp, double error, double bytesPerOp, long gcs) {
+			this.benchmark = benchmark;
+			this.size = size;
+			this.dist = dist;
+			this.nsPerOp = nsPerOp;
+			this.error = error;
+			this.bytesPerOp = bytesPerOp;
+			this.gcs = gcs;
+		}
+
+		String id() {
+			return benchmark + "," + size + "," + dist;
+		}
+
+		String toCsv() {
+			return id() + "," + nsPerOp + "," + error + "," + bytesPerOp + "," + gcs;
+		}
+
+		static Result fromCsv(String line) {
+			String[] f = line.split(",");
+			return new Result(f[0], Integer.parseInt(f[1]), f[2], Double.parseDouble(f[3]),
+					Double.parseDouble(f[4]), Double.parseDouble(f[5]), Long.parseLong(f[6]));
+		}
+	}
+}
@@ -0,0 +1,840 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * ConcurrentAVLTree
+ * A thread-safe AVL Tree with distinct integer keys and info, after Bronson, Casper, Chafi
+ * and Olukotun, "A Practical Concurrent Binary Search Tree" (PPoPP 2010).
+ *
+ * search takes no locks: it descends optimistically and validates the version of every node
+ * it passed, retrying from the last valid node if a rotation moved a node out from under it.
+ * insert and delete lock only the nodes they change. A node with two children is deleted by
+ * clearing its info, which leaves it as a routing node; it is unlinked once it has at most one
+ * child. Balance is relaxed: every writer repairs the heights and the rotations on its path
+ * after the change, so the tree is an AVL tree whenever no writer is in progress.
+ *
+ * Writers also hold a read lock of one stripe of a striped gate; size(), keysToArray() and
+ * infoToArray() take all stripes exclusively, so they see the tree between writes and are
+ * linearizable, at the price of briefly blocking writers (never searches).
+ *
+ * There is no select, less, rank or sum: nodes keep no subtree sizes or sums, which every
+ * writer would have to update up to the root, so that all writers would meet at the root
+ * again. Order statistics still need an AVLTree behind a lock of the caller's own (or a
+ * copy of keysToArray()).
+ *
+ * Keys may be any int, as in AVLTree. Unlike AVLTree, insert and delete return 0 rather than a
+ * rotation count (rotations are done cooperatively and cannot be attributed to a single call).
+ */
+public class ConcurrentAVLTree {
+
+	// node versions: the low bits mark an unlinked or a shrinking node, the rest counts shrinks
+	private static final long UNLINKED = 1L;
+	private static final long SHRINKING = 2L;
+	private static final long SHRINK_COUNT_INCREMENT = 4L;
+
+	private static final int SPIN_COUNT = 100; // spins on a shrinking node before blocking on its lock
+
+	// results of nodeCondition, other than a new height
+	private static final int UNLINK_REQUIRED = -1;
+	private static final int REBALANCE_REQUIRED = -2;
+	private static final int NOTHING_REQUIRED = -3;
+
+	private static final Object RETRY = new Object();     // the optimistic attempt failed
+	private static final Object PRESENT = new Object();   // insert found the key
+	private static final Object NULL_INFO = new Object(); // stands for a null info (null marks a routing node)
+
+	private final Node rootHolder = new Node(0, 0, null, 0L, null); // its right child is the root
+	private final LongAdder count = new LongAdder();
+	private final StampedLock[] gate;
+
+	public ConcurrentAVLTree() {
+		int stripes = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2 - 1);
+		this.gate = new StampedLock[stripes];
+		for (int i = 0; i < stripes; i++)
+			this.gate[i] = new StampedLock();
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty, from the count of keys and without the gate,
+	 * so it never blocks writers. exact while no writer is in progress; while one is, it may not
+	 * yet see that write (size() is linearizable). a delete can be counted before the insert of
+	 * the same key, so the count may briefly be negative, and then the tree is empty.
+	 */
+	public boolean empty() {
+		return count.sum() <= 0;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree
+	 * otherwise, returns null. takes no locks.
+	 */
+	public String search(int k) {
+		Object value = attemptGet(k, rootHolder, 1, 0L); // the root holder never changes, so this never retries
+		return (value == NULL_INFO) ? null : (String)value;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the tree.
+	 * returns 0, or -1 if an item with key k already exists in the tree.
+	 */
+	public int insert(int k, String i) {
+		Object value = (i == null) ? NULL_INFO : i;
+		StampedLock stripe = stripe();
+		long stamp = stripe.readLock();
+		try {
+			Object result;
+			do {
+				result = attemptPut(k, value, rootHolder, 1, 0L);
+			} while (result == RETRY);
+			if (result == PRESENT)
+				return -1;
+			count.increment();
+			return 0;
+		}
+		finally {
+			stripe.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the tree, if it is there.
+	 * returns 0, or -1 if an item with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		StampedLock stripe = stripe();
+		long stamp = stripe.readLock();
+		try {
+			Object result;
+			do {
+				result = attemptRemove(k, rootHolder, 1, 0L);
+			} while (result == RETRY);
+			if (result == null)
+				return -1;
+			count.decrement();
+			return 0;
+		}
+		finally {
+			stripe.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of items in the tree. waits for the writers in progress.
+	 */
+	public int size() {
+		long[] stamps = lockAll();
+		try {
+			return (int)count.sum();
+		}
+		finally {
+			unlockAll(stamps);
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree,
+	 * or an empty array if the tree is empty. waits for the writers in progress.
+	 */
+	public int[] keysToArray() {
+		long[] stamps = lockAll();
+		try {
+			List<Node> nodes = nodes();
+			int[] arr = new int[nodes.size()];
+			for (int i = 0; i < arr.length; i++)
+				arr[i] = nodes.get(i).key;
+			return arr;
+		}
+		finally {
+			unlockAll(stamps);
+		}
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree, sorted by their respective keys,
+	 * or an empty array if the tree is empty. waits for the writers in progress.
+	 */
+	public String[] infoToArray() {
+		long[] stamps = lockAll();
+		try {
+			List<Node> nodes = nodes();
+			String[] arr = new String[nodes.size()];
+			for (int i = 0; i < arr.length; i++) {
+				Object value = nodes.get(i).value;
+				arr[i] = (value == NULL_INFO) ? null : (String)value;
+			}
+			return arr;
+		}
+		finally {
+			unlockAll(stamps);
+		}
+	}
+
+	/**
+	 * private List<Node> nodes()
+	 *
+	 * the nodes holding items, in order (routing nodes are skipped)
+	 *
+	 * @pre no writer is in progress
+	 */
+	private List<Node> nodes() {
+		List<Node> result = new ArrayList<Node>((int)count.sum());
+		Deque<Node> stack = new ArrayDeque<Node>();
+		Node node = rootHolder.right;
+		while (node != null || !stack.isEmpty()) {
+			while (node != null) {
+				stack.push(node);
+				node = node.left;
+			}
+			node = stack.pop();
+			if (node.value != null)
+				result.add(node);
+			node = node.right;
+		}
+		return result;
+	}
+
+	/**
+	 * void checkInvariants()
+	 *
+	 * waits for the writers in progress and checks that the tree between them is an AVL tree:
+	 * the keys are in order, every parent link and height is right, no node is out of balance,
+	 * every routing node has two children, and size() counts the nodes holding items.
+	 * throws IllegalStateException at the first violation (for the stress runs of Benchmarks)
+	 */
+	void checkInvariants() {
+		long[] stamps = lockAll();
+		try {
+			Node root = rootHolder.right;
+			if (root != null && root.parent != rootHolder)
+				throw new IllegalStateException("the root does not point to the root holder");
+			long items = checkSubtree(root, Long.MIN_VALUE, Long.MAX_VALUE);
+			if (items != count.sum())
+				throw new IllegalStateException("size " + count.sum() + " but " + items + " items");
+		}
+		finally {
+			unlockAll(stamps);
+		}
+	}
+
+	/*
+	 * checks the subtree of node, whose keys must lie in (low, high), and returns its number of items
+	 */
+	private static long checkSubtree(Node node, long low, long high) {
+		if (node == null)
+			return 0;
+		if (node.key <= low || node.key >= high)
+			throw new IllegalStateException("key " + node.key + " out of order");
+		if (node.version == UNLINKED || (node.version & SHRINKING) != 0)
+			throw new IllegalStateException("node " + node.key + " is unlinked or shrinking");
+		for (Node child : new Node[] {node.left, node.right})
+			if (child != null && child.parent != node)
+				throw new IllegalStateException("wrong parent of " + child.key);
+		if (node.value == null && (node.left == null || node.right == null))
+			throw new IllegalStateException("routing node " + node.key + " with less than two children");
+		int hL = height(node.left);
+		int hR = height(node.right);
+		if (node.height != 1 + Math.max(hL, hR))
+			throw new IllegalStateException("wrong height at " + node.key);
+		if (Math.abs(hL - hR) > 1)
+			throw new IllegalStateException("node " + node.key + " out of balance: " + hL + " against " + hR);
+		return checkSubtree(node.left, low, node.key) + checkSubtree(node.right, node.key, high)
+				+ ((node.value != null) ? 1 : 0);
+	}
+
+	private StampedLock stripe() {
+		return gate[(int)Thread.currentThread().getId() & (gate.length - 1)];
+	}
+
+	private long[] lockAll() {
+		long[] stamps = new long[gate.length];
+		for (int i = 0; i < gate.length; i++)
+			stamps[i] = gate[i].writeLock();
+		return stamps;
+	}
+
+	private void unlockAll(long[] stamps) {
+		for (int i = gate.length - 1; i >= 0; i--)
+			gate[i].unlockWrite(stamps[i]);
+	}
+
+	/*
+	 * the optimistic descents. node is a node which was reached with version nodeV,
+	 * dir the side of node to continue on (-1 left, 1 right). whenever node's version
+	 * changes, the search below it may have missed the key and returns RETRY to the
+	 * caller, which revalidates its own node.
+	 */
+
+	private Object attemptGet(int k, Node node, int dir, long nodeV) {
+		while (true) {
+			Node child = node.child(dir);
+			if (node.version != nodeV)
+				return RETRY;
+			if (child == null)
+				return null;
+			int nextD = Integer.compare(k, child.key);
+			if (nextD == 0)
+				return child.value; // null for a routing node
+			long chV = child.version;
+			if ((chV & SHRINKING) != 0) {
+				waitUntilNotChanging(child);
+			}
+			else if (chV != UNLINKED && child == node.child(dir)) {
+				if (node.version != nodeV)
+					return RETRY;
+				Object result = attemptGet(k, child, nextD, chV);
+				if (result != RETRY)
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * returns null if (k, v) was inserted, PRESENT if k is in the tree, or RETRY
+	 */
+	private Object attemptPut(int k, Object v, Node node, int dir, long nodeV) {
+		Object result;
+		do {
+			result = RETRY;
+			Node child = node.child(dir);
+			if (node.version != nodeV)
+				return RETRY;
+			if (child == null) {
+				result = attemptInsertLeaf(k, v, node, dir, nodeV);
+			}
+			else {
+				int nextD = Integer.compare(k, child.key);
+				if (nextD == 0) {
+					result = attemptRevive(child, v);
+				}
+				else {
+					long chV = child.version;
+					if ((chV & SHRINKING) != 0) {
+						waitUntilNotChanging(child);
+					}
+					else if (chV != UNLINKED && child == node.child(dir)) {
+						if (node.version != nodeV)
+							return RETRY;
+						result = attemptPut(k, v, child, nextD, chV);
+					}
+				}
+			}
+		} while (result == RETRY);
+		return result;
+	}
+
+	private Object attemptInsertLeaf(int k, Object v, Node node, int dir, long nodeV) {
+		synchronized (node) {
+			if (node.version != nodeV || node.child(dir) != null)
+				return RETRY;
+			node.setChild(dir, new Node(k, 1, v, 0L, node));
+		}
+		fixHeightAndRebalance(node);
+		return null;
+	}
+
+	/**
+	 * a routing node with key k gets the item, or PRESENT if it is not a routing node
+	 */
+	private Object attemptRevive(Node node, Object v) {
+		synchronized (node) {
+			if (node.version == UNLINKED)
+				return RETRY;
+			if (node.value != null)
+				return PRESENT;
+			node.value = v;
+			return null;
+		}
+	}
+
+	/**
+	 * returns the removed info, null if k is not in the tree, or RETRY
+	 */
+	private Object attemptRemove(int k, Node node, int dir, long nodeV) {
+		Object result;
+		do {
+			result = RETRY;
+			Node child = node.child(dir);
+			if (node.version != nodeV)
+				return RETRY;
+			if (child == null)
+				return null;
+			int nextD = Integer.compare(k, child.key);
+			if (nextD == 0) {
+				result = attemptRemoveNode(node, child);
+			}
+			else {
+				long chV = child.version;
+				if ((chV & SHRINKING) != 0) {
+					waitUntilNotChanging(child);
+				}
+				else if (chV != UNLINKED && child == node.child(dir)) {
+					if (node.version != nodeV)
+						return RETRY;
+					result = attemptRemove(k, child, nextD, chV);
+				}
+			}
+		} while (result == RETRY);
+		return result;
+	}
+
+	private Object attemptRemoveNode(Node parent, Node node) {
+		if (node.value == null)
+			return null; // a routing node
+		Object prev;
+		if (!canUnlink(node)) { // two children: make it a routing node
+			synchronized (node) {
+				if (node.version == UNLINKED || canUnlink(node))
+					return RETRY;
+				prev = node.value;
+				node.value = null;
+			}
+			return prev;
+		}
+		synchronized (parent) {
+			if (parent.version == UNLINKED || node.parent != parent)
+				return RETRY;
+			synchronized (node) {
+				prev = node.value;
+				if (prev == null)
+					return null;
+				if (!canUnlink(node))
+					return RETRY;
+				Node splice = (node.left != null) ? node.left : node.right;
+				if (parent.left == node)
+					parent.left = splice;
+				else
+					parent.right = splice;
+				if (splice != null)
+					splice.parent = parent;
+				node.value = null;
+				node.version = UNLINKED;
+			}
+		}
+		fixHeightAndRebalance(parent);
+		return prev;
+	}
+
+	private static boolean canUnlink(Node node) {
+		return node.left == null || node.right == null;
+	}
+
+	private static void waitUntilNotChanging(Node node) {
+		long version = node.version;
+		if ((version & SHRINKING) != 0) {
+			for (int i = 0; i < SPIN_COUNT; i++) {
+				if (node.version != version)
+					return;
+			}
+			synchronized (node) { // the shrinking thread holds the lock
+			}
+		}
+	}
+
+	private static int height(Node node) {
+		return (node == null) ? 0 : node.height;
+	}
+
+	/*
+	 * the relaxed rebalancing. methods ending with _nl expect the caller to hold the locks
+	 * of the nodes they change; they return the next node which may need repair, or null.
+	 */
+
+	/**
+	 * repairs node and walks up while heights change. a rotation which leaves damage below
+	 * it (a routing node to unlink, a node still out of balance) returns that node instead of
+	 * its parent, and the walk goes down to it; the parent of the rotated subtree, whose
+	 * height may have changed as well, is kept in resume and visited once the damage below
+	 * is repaired, or the walk would stop there and leave an ancestor out of balance.
+	 */
+	private void fixHeightAndRebalance(Node node) {
+		Deque<Node> resume = null;
+		while (true) {
+			int condition = (node == null || node.parent == null) ? NOTHING_REQUIRED : nodeCondition(node); // the root holder has no parent
+			if (condition == NOTHING_REQUIRED || node.version == UNLINKED) {
+				if (resume == null || resume.isEmpty())
+					return;
+				node = resume.pop();
+			}
+			else if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+				synchronized (node) {
+					node = fixHeight_nl(node);
+				}
+			}
+			else {
+				Node nParent = node.parent;
+				Node above = nParent.parent;
+				synchronized (nParent) {
+					if (nParent.version != UNLINKED && node.parent == nParent) {
+						synchronized (node) {
+							node = rebalance_nl(nParent, node);
+						}
+						if (node != null && node != nParent && node != above) { // damage below nParent
+							if (resume == null)
+								resume = new ArrayDeque<Node>();
+							resume.push(nParent);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * returns UNLINK_REQUIRED, REBALANCE_REQUIRED, NOTHING_REQUIRED,
+	 * or the height node should have
+	 */
+	private static int nodeCondition(Node node) {
+		Node nL = node.left;
+		Node nR = node.right;
+		if ((nL == null || nR == null) && node.value == null)
+			return UNLINK_REQUIRED;
+		int hN = node.height;
+		int hL0 = height(nL);
+		int hR0 = height(nR);
+		int hNRepl = 1 + Math.max(hL0, hR0);
+		int bal = hL0 - hR0;
+		if (bal < -1 || bal > 1)
+			return REBALANCE_REQUIRED;
+		return (hN != hNRepl) ? hNRepl : NOTHING_REQUIRED;
+	}
+
+	private static Node fixHeight_nl(Node node) {
+		int condition = nodeCondition(node);
+		switch (condition) {
+		case REBALANCE_REQUIRED:
+		case UNLINK_REQUIRED:
+			return node;
+		case NOTHING_REQUIRED:
+			return null;
+		default:
+			node.height = condition;
+			return node.parent;
+		}
+	}
+
+	private static Node rebalance_nl(Node nParent, Node n) {
+		Node nL = n.left;
+		Node nR = n.right;
+		if ((nL == null || nR == null) && n.value == null) {
+			if (attemptUnlink_nl(nParent, n))
+				return fixHeight_nl(nParent);
+			return n;
+		}
+		int hN = n.height;
+		int hL0 = height(nL);
+		int hR0 = height(nR);
+		int hNRepl = 1 + Math.max(hL0, hR0);
+		int bal = hL0 - hR0;
+		if (bal > 1)
+			return rebalanceToRight_nl(nParent, n, nL, hR0);
+		if (bal < -1)
+			return rebalanceToLeft_nl(nParent, n, nR, hL0);
+		if (hNRepl != hN) {
+			n.height = hNRepl;
+			return fixHeight_nl(nParent);
+		}
+		return null;
+	}
+
+	private static boolean attemptUnlink_nl(Node parent, Node n) {
+		Node parentL = parent.left;
+		Node parentR = parent.right;
+		if (parentL != n && parentR != n)
+			return false;
+		Node nL = n.left;
+		Node nR = n.right;
+		if (nL != null && nR != null)
+			return false;
+		Node splice = (nL != null) ? nL : nR;
+		if (parentL == n)
+			parent.left = splice;
+		else
+			parent.right = splice;
+		if (splice != null)
+			splice.parent = parent;
+		n.version = UNLINKED;
+		n.value = null;
+		return true;
+	}
+
+	private static Node rebalanceToRight_nl(Node nParent, Node n, Node nL, int hR0) {
+		synchronized (nL) {
+			int hL = nL.height;
+			if (hL - hR0 <= 1)
+				return n; // retry
+			Node nLR = nL.right;
+			int hLL0 = height(nL.left);
+			int hLR0 = height(nLR);
+			if (hLL0 >= hLR0)
+				return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR0); // LL
+			synchronized (nLR) {
+				int hLR = nLR.height;
+				if (hLL0 >= hLR)
+					return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR);
+				int hLRL = height(nLR.left);
+				int b = hLL0 - hLRL;
+				if (b >= -1 && b <= 1) {
+					if (!((hLL0 == 0 || hLRL == 0) && nL.value == null))
+						return rotateRightOverLeft_nl(nParent, n, nL, hR0, hLL0, nLR, hLRL); // LR
+					// the double rotation would leave the routing node nL with one child, and nL
+					// itself is not out of balance, so rebalanceToLeft_nl would not rotate it either:
+					// rotate nL down under nLR, unlink it there, and retry at n
+					rotateLeft_nl(n, nL, hLL0, nLR, nLR.left, hLRL, height(nLR.right));
+					attemptUnlink_nl(nLR, nL);
+					fixHeight_nl(nLR);
+					return n;
+				}
+			}
+			return rebalanceToLeft_nl(n, nL, nLR, hLL0); // first repair nL
+		}
+	}
+
+	private static Node rebalanceToLeft_nl(Node nParent, Node n, Node nR, int hL0) {
+		synchronized (nR) {
+			int hR = nR.height;
+			if (hL0 - hR >= -1)
+				return n; // retry
+			Node nRL = nR.left;
+			int hRL0 = height(nRL);
+			int hRR0 = height(nR.right);
+			if (hRR0 >= hRL0)
+				return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL0, hRR0); // RR
+			synchronized (nRL) {
+				int hRL = nRL.height;
+				if (hRR0 >= hRL)
+					return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL, hRR0);
+				int hRLR = height(nRL.right);
+				int b = hRR0 - hRLR;
+				if (b >= -1 && b <= 1) {
+					if (!((hRR0 == 0 || hRLR == 0) && nR.value == null))
+						return rotateLeftOverRight_nl(nParent, n, hL0, nR, nRL, hRR0, hRLR); // RL
+					// the mirror image of the case in rebalanceToRight_nl
+					rotateRight_nl(n, nR, nRL, hRR0, height(nRL.left), nRL.right, hRLR);
+					attemptUnlink_nl(nRL, nR);
+					fixHeight_nl(nRL);
+					return n;
+				}
+			}
+			return rebalanceToRight_nl(n, nR, nRL, hRR0); // first repair nR
+		}
+	}
+
+	private static Node rotateRight_nl(Node nParent, Node n, Node nL, int hR, int hLL, Node nLR, int hLR) {
+		long nodeOVL = n.version;
+		Node nPL = nParent.left;
+		n.version = nodeOVL | SHRINKING;
+
+		n.left = nLR;
+		if (nLR != null)
+			nLR.parent = n;
+		nL.right = n;
+		n.parent = nL;
+		if (nPL == n)
+			nParent.left = nL;
+		else
+			nParent.right = nL;
+		nL.parent = nParent;
+
+		int hNRepl = 1 + Math.max(hLR, hR);
+		n.height = hNRepl;
+		nL.height = 1 + Math.max(hLL, hNRepl);
+
+		n.version = nodeOVL + SHRINK_COUNT_INCREMENT;
+
+		int balN = hLR - hR;
+		if (balN < -1 || balN > 1)
+			return n;
+		if ((nLR == null || hR == 0) && n.value == null)
+			return n;
+		int balL = hLL - hNRepl;
+		if (balL < -1 || balL > 1)
+			return nL;
+		if (hLL == 0 && nL.value == null)
+			return nL;
+		return fixHeight_nl(nParent);
+	}
+
+	private static Node rotateLeft_nl(Node nParent, Node n, int hL, Node nR, Node nRL, int hRL, int hRR) {
+		long nodeOVL = n.version;
+		Node nPL = nParent.left;
+		n.version = nodeOVL | SHRINKING;
+
+		n.right = nRL;
+		if (nRL != null)
+			nRL.parent = n;
+		nR.left = n;
+		n.parent = nR;
+		if (nPL == n)
+			nParent.left = nR;
+		else
+			nParent.right = nR;
+		nR.parent = nParent;
+
+		int hNRepl = 1 + Math.max(hL, hRL);
+		n.height = hNRepl;
+		nR.height = 1 + Math.max(hNRepl, hRR);
+
+		n.version = nodeOVL + SHRINK_COUNT_INCREMENT;
+
+		int balN = hRL - hL;
+		if (balN < -1 || balN > 1)
+			return n;
+		if ((nRL == null || hL == 0) && n.value == null)
+			return n;
+		int balR = hRR - hNRepl;
+		if (balR < -1 || balR > 1)
+			return nR;
+		if (hRR == 0 && nR.value == null)
+			return nR;
+		return fixHeight_nl(nParent);
+	}
+
+	private static Node rotateRightOverLeft_nl(Node nParent, Node n, Node nL, int hR, int hLL, Node nLR, int hLRL) {
+		long nodeOVL = n.version;
+		long leftOVL = nL.version;
+		Node nPL = nParent.left;
+		Node nLRL = nLR.left;
+		Node nLRR = nLR.right;
+		int hLRR = height(nLRR);
+
+		n.version = nodeOVL | SHRINKING;
+		nL.version = leftOVL | SHRINKING;
+
+		n.left = nLRR;
+		if (nLRR != null)
+			nLRR.parent = n;
+		nL.right = nLRL;
+		if (nLRL != null)
+			nLRL.parent = nL;
+		nLR.left = nL;
+		nL.parent = nLR;
+		nLR.right = n;
+		n.parent = nLR;
+		if (nPL == n)
+			nParent.left = nLR;
+		else
+			nParent.right = nLR;
+		nLR.parent = nParent;
+
+		int hNRepl = 1 + Math.max(hLRR, hR);
+		n.height = hNRepl;
+		int hLRepl = 1 + Math.max(hLL, hLRL);
+		nL.height = hLRepl;
+		nLR.height = 1 + Math.max(hLRepl, hNRepl);
+
+		n.version = nodeOVL + SHRINK_COUNT_INCREMENT;
+		nL.version = leftOVL + SHRINK_COUNT_INCREMENT;
+
+		int balN = hLRR - hR;
+		if (balN < -1 || balN > 1)
+			return n;
+		if ((nLRR == null || hR == 0) && n.value == null)
+			return n;
+		int balLR = hLRepl - hNRepl;
+		if (balLR < -1 || balLR > 1)
+			return nLR;
+		return fixHeight_nl(nParent);
+	}
+
+	private static Node rotateLeftOverRight_nl(Node nParent, Node n, int hL, Node nR, Node nRL, int hRR, int hRLR) {
+		long nodeOVL = n.version;
+		long rightOVL = nR.version;
+		Node nPL = nParent.left;
+		Node nRLL = nRL.left;
+		int hRLL = height(nRLL);
+		Node nRLR = nRL.right;
+
+		n.version = nodeOVL | SHRINKING;
+		nR.version = rightOVL | SHRINKING;
+
+		n.right = nRLL;
+		if (nRLL != null)
+			nRLL.parent = n;
+		nR.left = nRLR;
+		if (nRLR != null)
+			nRLR.parent = nR;
+		nRL.right = nR;
+		nR.parent = nRL;
+		nRL.left = n;
+		n.parent = nRL;
+		if (nPL == n)
+			nParent.left = nRL;
+		else
+			nParent.right = nRL;
+		nRL.parent = nParent;
+
+		int hNRepl = 1 + Math.max(hL, hRLL);
+		n.height = hNRepl;
+		int hRRepl = 1 + Math.max(hRLR, hRR);
+		nR.height = hRRepl;
+		nRL.height = 1 + Math.max(hNRepl, hRRepl);
+
+		n.version = nodeOVL + SHRINK_COUNT_INCREMENT;
+		nR.version = rightOVL + SHRINK_COUNT_INCREMENT;
+
+		int balN = hRLL - hL;
+		if (balN < -1 || balN > 1)
+			return n;
+		if ((nRLL == null || hL == 0) && n.value == null)
+			return n;
+		int balRL = hRRepl - hNRepl;
+		if (balRL < -1 || balRL > 1)
+			return nRL;
+		return fixHeight_nl(nParent);
+	}
+
+	/**
+	 * private static final class Node
+	 *
+	 * a node of the tree. height is 1 for a leaf (0 stands for a missing child).
+	 * all fields but the key are read without locks, so they are volatile;
+	 * they are written only by threads holding the node's lock (and parent, by the
+	 * holder of the lock of the node's parent).
+	 */
+	private static final class Node {
+		final int key;
+		volatile int height;
+		volatile long version;
+		volatile Object value; // null for a routing node
+		volatile Node parent;
+		volatile Node left;
+		volatile Node right;
+
+		Node(int key, int height, Object value, long version, Node parent) {
+			this.key = key;
+			this.height = height;
+			this.value = value;
+			this.version = version;
+			this.parent = parent;
+		}
+
+		Node child(int dir) {
+			return (dir < 0) ? left : right;
+		}
+
+		void setChild(int dir, Node node) {
+			if (dir < 0)
+				left = node;
+			else
+				right = node;
+		}
+	}
+}
@@ -0,0 +1,420 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * DurableAVLTree
+ * An AVLTree whose changes survive a restart: every insert and delete which changes the tree
+ * is appended to a write-ahead log, and the whole tree is written as a checkpoint from time
+ * to time. open loads the latest checkpoint in O(n) (see AVLTree.readFrom) and replays the
+ * operations logged after it, instead of repeating every insert since the tree was created.
+ *
+ * The files live in one directory:
+ *
+ *   checkpoint  magic, version, the sequence number of the last operation it includes,
+ *               the tree as written by AVLTree.writeTo, and a CRC32 of all of these
+ *   wal         records of [payload length, CRC32 of the payload, payload], where the payload
+ *               is the operation, its sequence number, the key and (for inserts) the info
+ *
+ * Log records are collected in memory and written with a single force per group of groupSize
+ * operations (group commit), so an operation is durable once its group is committed, or once
+ * sync() returns. A crash loses at most the uncommitted group; a record torn by the crash
+ * fails its checksum, and the log is cut there on recovery.
+ * A checkpoint is written to a temporary file and renamed over the previous one, and only then
+ * is the log emptied, so a crash in between leaves records which the checkpoint already
+ * includes: their sequence numbers tell recovery to skip them.
+ *
+ * insert and delete change the tree before they log the change, so when they throw an
+ * UncheckedIOException (the log could not be written or forced), the tree is already ahead
+ * of the log: the change is in the tree and its record stays pending. The next commit (the
+ * next full group, sync, checkpoint or close) writes the pending records again at the same
+ * place in the log; if the process ends before one succeeds, those changes are lost.
+ */
+public class DurableAVLTree {
+
+	private static final int MAGIC = 0x4156_4C44; // "AVLD"
+	private static final int VERSION = 2; // 2: the items are an AVLTree snapshot (see AVLTree.writeTo)
+
+	private static final byte INSERT = 1, DELETE = 2;
+	private static final int RECORD_HEADER = 8;               // the payload length and its CRC32
+	private static final int MAX_PAYLOAD = 1 + 8 + 4 + 4 + (1 << 24); // op, sequence number, key, info
+
+	private static final String CHECKPOINT = "checkpoint", LOG = "wal";
+
+	private final Path dir;
+	private final FileChannel log;
+	private final int groupSize;       // operations per commit of the log
+	private final long checkpointEvery; // logged operations between checkpoints, 0 for none
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer pending = ByteBuffer.allocate(1 << 16); // records which were not written yet
+
+	private AVLTree tree;
+	private long lastSequence;     // the sequence number of the last logged operation
+	private int uncommitted;       // operations in pending
+	private long committed;        // the end of the committed records in the log
+	private long sinceCheckpoint;  // operations logged since the last checkpoint
+
+	private DurableAVLTree(Path dir, FileChannel log, int groupSize, long checkpointEvery) {
+		this.dir = dir;
+		this.log = log;
+		this.groupSize = groupSize;
+		this.checkpointEvery = checkpointEvery;
+	}
+
+	/**
+	 * public static DurableAVLTree open(File dir)
+	 *
+	 * like open(dir, 64, 1 << 20)
+	 */
+	public static DurableAVLTree open(File dir) throws IOException {
+		return open(dir, 64, 1 << 20);
+	}
+
+	/**
+	 * public static DurableAVLTree open(File dir, int groupSize, long checkpointEvery)
+	 *
+	 * recovers the tree stored in dir (the latest checkpoint and the log after it), or creates
+	 * an empty tree if dir holds none. the log is committed every groupSize operations, and a
+	 * checkpoint is written every checkpointEvery logged operations (never, if it is 0).
+	 * throws IOException if the checkpoint is damaged; a damaged end of the log is cut off.
+	 */
+	public static DurableAVLTree open(File dir, int groupSize, long checkpointEvery) throws IOException {
+		if (groupSize < 1 || checkpointEvery < 0)
+			throw new IllegalArgumentException("groupSize must be positive and checkpointEvery non-negative");
+		Path path = dir.toPath();
+		Files.createDirectories(path);
+		Files.deleteIfExists(path.resolve(CHECKPOINT + ".tmp")); // a checkpoint which was not finished
+		FileChannel log = FileChannel.open(path.resolve(LOG),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		DurableAVLTree durable = new DurableAVLTree(path, log, groupSize, checkpointEvery);
+		try {
+			durable.readCheckpoint();
+			durable.replay();
+		}
+		catch (IOException | RuntimeException e) {
+			log.close();
+			throw e;
+		}
+		return durable;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * like AVLTree.insert; the operation is logged if it changed the tree
+	 * throws IllegalArgumentException if the info is longer than 16MB in UTF-8, and
+	 * UncheckedIOException if a due commit or checkpoint fails (the key is inserted anyway)
+	 */
+	public int insert(int k, String i) {
+		byte[] bytes = (i == null) ? null : i.getBytes(StandardCharsets.UTF_8);
+		if (bytes != null && bytes.length > 1 << 24)
+			throw new IllegalArgumentException("info longer than " + (1 << 24) + " bytes");
+		int result = tree.insert(k, i);
+		if (result != -1)
+			append(INSERT, k, bytes);
+		return result;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * like AVLTree.delete; the operation is logged if it changed the tree
+	 * throws UncheckedIOException if a due commit or checkpoint fails (the key is deleted anyway)
+	 */
+	public int delete(int k) {
+		int result = tree.delete(k);
+		if (result != -1)
+			append(DELETE, k, null);
+		return result;
+	}
+
+	/**
+	 * public void sync()
+	 *
+	 * commits the operations which were not committed yet, so all of them are durable
+	 */
+	public void sync() {
+		try {
+			commit();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * public void checkpoint()
+	 *
+	 * writes the tree as the new checkpoint in O(n) and empties the log
+	 */
+	public void checkpoint() {
+		try {
+			commit();
+			writeCheckpoint();
+			log.truncate(0);
+			committed = 0;
+			log.force(true);
+			sinceCheckpoint = 0;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * commits the log and closes it. the tree must not be used afterwards.
+	 */
+	public void close() throws IOException {
+		try {
+			commit();
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	/*
+	 * the queries of AVLTree, which need no logging
+	 */
+
+	public boolean empty() {
+		return tree.empty();
+	}
+
+	public String search(int k) {
+		return tree.search(k);
+	}
+
+	public String min() {
+		return tree.min();
+	}
+
+	public String max() {
+		return tree.max();
+	}
+
+	public int[] keysToArray() {
+		return tree.keysToArray();
+	}
+
+	public String[] infoToArray() {
+		return tree.infoToArray();
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	public long sum() {
+		return tree.sum();
+	}
+
+	public String select(int i) {
+		return tree.select(i);
+	}
+
+	public long less(int i) {
+		return tree.less(i);
+	}
+
+	/**
+	 * private void append(byte op, int k, byte[] info)
+	 *
+	 * adds the record of an operation to the pending group, commits the group when it is full
+	 * and writes a checkpoint when it is due
+	 */
+	private void append(byte op, int k, byte[] info) {
+		int payload = 1 + 8 + 4 + ((op == INSERT) ? 4 + ((info == null) ? 0 : info.length) : 0);
+		if (pending.remaining() < RECORD_HEADER + payload) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + RECORD_HEADER + payload));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		int start = pending.position();
+		pending.putInt(payload);
+		pending.putInt(0); // the checksum, once the payload is there
+		pending.put(op);
+		pending.putLong(++lastSequence);
+		pending.putInt(k);
+		if (op == INSERT) {
+			pending.putInt((info == null) ? -1 : info.length);
+			if (info != null)
+				pending.put(info);
+		}
+		crc.reset();
+		crc.update(pending.array(), start + RECORD_HEADER, payload);
+		pending.putInt(start + 4, (int)crc.getValue());
+
+		uncommitted++;
+		sinceCheckpoint++;
+		if (checkpointEvery > 0 && sinceCheckpoint >= checkpointEvery)
+			checkpoint(); // commits the group too
+		else if (uncommitted >= groupSize)
+			sync();
+	}
+
+	/**
+	 * private void commit()
+	 *
+	 * writes the pending records to the log after the committed ones and forces it to the
+	 * storage device. if that fails, the records stay pending, and the next commit writes them
+	 * again at the same position, over whatever part of them was written.
+	 */
+	private void commit() throws IOException {
+		if (uncommitted == 0)
+			return;
+		int end = pending.position();
+		pending.flip();
+		try {
+			long at = committed;
+			while (pending.hasRemaining())
+				at += log.write(pending, at);
+			log.force(false);
+		}
+		catch (IOException | RuntimeException e) {
+			pending.limit(pending.capacity()).position(end); // back to collecting records
+			throw e;
+		}
+		committed += end;
+		pending.clear();
+		uncommitted = 0;
+	}
+
+	/**
+	 * private void replay()
+	 *
+	 * applies the records of the log which follow the checkpoint, up to the first one which is
+	 * incomplete or fails its checksum, and cuts the log after the last good record
+	 */
+	private void replay() throws IOException {
+		long checkpointSequence = lastSequence;
+		long good = 0; // the end of the last good record
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0)), 1 << 16));
+		byte[] payload = new byte[64];
+		while (true) {
+			int length;
+			int checksum;
+			try {
+				length = in.readInt();
+				checksum = in.readInt();
+				if (length < 1 + 8 + 4 || length > MAX_PAYLOAD)
+					break;
+				if (payload.length < length)
+					payload = new byte[Math.max(length, 2 * payload.length)];
+				in.readFully(payload, 0, length);
+			}
+			catch (EOFException e) {
+				break;
+			}
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int)crc.getValue() != checksum)
+				break;
+			ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+			byte op = record.get();
+			long sequence = record.getLong();
+			int k = record.getInt();
+			if (sequence > checkpointSequence) { // older records are in the checkpoint already
+				if (op == INSERT) {
+					int infoLength = record.getInt();
+					String info = (infoLength < 0) ? null : new String(payload, record.position(), infoLength, StandardCharsets.UTF_8);
+					tree.insert(k, info);
+				}
+				else {
+					tree.delete(k);
+				}
+				lastSequence = sequence;
+				sinceCheckpoint++;
+			}
+			good += RECORD_HEADER + length;
+		}
+		if (log.size() > good) {
+			log.truncate(good);
+			log.force(true);
+		}
+		committed = good;
+	}
+
+	/**
+	 * private void readCheckpoint()
+	 *
+	 * loads the checkpoint, or makes the tree empty if there is none.
+	 * the file is mapped, checked against its CRC32 and loaded in place by AVLTree.readFrom.
+	 */
+	private void readCheckpoint() throws IOException {
+		Path path = dir.resolve(CHECKPOINT);
+		if (!Files.exists(path)) {
+			tree = new AVLTree();
+			lastSequence = 0;
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (file.limit() < 4 + 4 + 8 + 4 || file.getInt() != MAGIC)
+				throw new IOException("not a DurableAVLTree checkpoint: " + path);
+			int version = file.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported DurableAVLTree version " + version);
+			ByteBuffer body = file.duplicate();
+			body.position(0);
+			body.limit(file.limit() - 4);
+			CRC32 checksum = new CRC32();
+			checksum.update(body);
+			if (file.getInt(file.limit() - 4) != (int)checksum.getValue())
+				throw new IOException("damaged checkpoint " + path);
+			long sequence = file.getLong();
+			tree = AVLTree.readFrom(file);
+			if (file.position() != file.limit() - 4)
+				throw new IOException("damaged checkpoint " + path);
+			lastSequence = sequence;
+		}
+	}
+
+	/**
+	 * private void writeCheckpoint()
+	 *
+	 * writes the tree to a temporary file, forces it, and renames it over the checkpoint
+	 */
+	private void writeCheckpoint() throws IOException {
+		Path tmp = dir.resolve(CHECKPOINT + ".tmp");
+		CRC32 checksum = new CRC32();
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			OutputStream file = Channels.newOutputStream(channel);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), checksum));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(lastSequence);
+			tree.writeTo(Channels.newChannel(out));
+			out.writeInt((int)checksum.getValue());
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+			directory.force(true); // makes the rename durable
+		}
+		catch (IOException e) {
+			// some platforms cannot open a directory; the rename is then as durable as they make it
+		}
+	}
+}
@@ -0,0 +1,338 @@
+import java.util.Arrays;
+
+/**
+ * FrozenAVLIndex
+ * An immutable index of distinct integer keys and info, for lookups only (see AVLTree.freeze).
+ *
+ * The keys are stored as a complete binary search tree, in van Emde Boas order in a flat int[]:
+ * the tree is cut at half its height, the top half is laid out first and then every bottom
+ * half, each of them recursively in the same way. Every subtree of about sqrt(size) nodes is
+ * then contiguous, so a search touches O(log n / log B) cache lines for any line size B, where
+ * pointer chasing through AVLNode objects touches one per level.
+ *
+ * A search walks the tree by the indices of breadth first order (children of i are 2i and 2i+1)
+ * and translates them to positions in the layout with the tables of Brodal, Fagerberg and Jacob
+ * ("Cache Oblivious Search Trees via Binary Trees of Small Height"); the leaf edge it leaves
+ * through is the number of keys on its left, i.e. k's rank. The complete tree has 2^h - 1 slots
+ * for the n keys; the slots of in-order rank n and above are padding, to the right of every key.
+ * Everything addressed by rank (infos, the sorted keys for scans and the prefix sums for less)
+ * is kept in plain sorted arrays.
+ *
+ * Being immutable, an index can be shared by any number of threads without locking.
+ */
+public class FrozenAVLIndex {
+
+	private final int n;           // the number of keys
+	private final int height;      // the number of levels of the complete tree
+	private final int[] layout;    // the keys of the complete tree, in van Emde Boas order
+	private final int[] keys;      // the keys, sorted
+	private final String[] infos;  // the infos, by the rank of their keys
+	private final long[] prefix;   // prefix[r] is the sum of the r smallest keys
+
+	// the positions of a search path in the layout, by depth d, for the split in which
+	// the nodes at depth d are the roots of the bottom trees:
+	private final int[] top;       // the size of the top tree, also a mask of the bits below its root
+	private final int[] bottom;    // the size of every bottom tree
+	private final int[] topDepth;  // the depth of the root of the top tree
+	// where exit keeps the position of the node at depth d: depth 0 in register 0, and the roots
+	// of the bottom trees of a split made at recursion level L (0 for the whole tree) in register
+	// L + 1. a position is read only inside its bottom tree, and the next split at the same level
+	// lies below that, so it is never overwritten while it is needed. fewer than 2^30 keys give
+	// at most 30 levels, which are split at most 5 levels deep: registers 0 .. 5.
+	private final byte[] register;
+	private final byte[] topRegister; // register[topDepth[d]]
+
+	/*
+	 * takes over the arrays, which must be sorted, shorter than 2^30 and not used by anyone else
+	 * (see AVLTree.freeze)
+	 */
+	FrozenAVLIndex(int[] keys, String[] infos) {
+		this.n = keys.length;
+		this.height = 32 - Integer.numberOfLeadingZeros(n);
+		this.keys = keys;
+		this.infos = infos;
+		this.prefix = new long[n + 1];
+		for (int r = 0; r < n; r++)
+			prefix[r + 1] = prefix[r] + keys[r];
+
+		this.top = new int[height];
+		this.bottom = new int[height];
+		this.topDepth = new int[height];
+		this.register = new byte[height];
+		this.topRegister = new byte[height];
+		splitLevels(0, height, 0);
+		for (int d = 1; d < height; d++)
+			topRegister[d] = register[topDepth[d]];
+
+		this.layout = new int[(1 << height) - 1];
+		if (n > 0)
+			place(0, height, 0, 1);
+	}
+
+	/**
+	 * public static FrozenAVLIndex fromSorted(int[] keys, String[] infos)
+	 *
+	 * builds an index of the items (keys[j], infos[j]) in O(n).
+	 * the arrays are copied, so they may be changed later.
+	 * throws IllegalArgumentException if the keys are not strictly increasing,
+	 * if the arrays differ in length, or if there are 2^30 keys or more.
+	 */
+	public static FrozenAVLIndex fromSorted(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + infos.length + " infos");
+		if (keys.length >= 1 << 30)
+			throw new IllegalArgumentException("cannot index " + keys.length + " keys");
+		for (int j = 1; j < keys.length; j++) {
+			if (keys[j - 1] >= keys[j])
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + j);
+		}
+		return new FrozenAVLIndex(keys.clone(), infos.clone());
+	}
+
+	/*
+	 * lays out the complete tree of the given number of levels at layout[base ..], whose nodes
+	 * in order are the slots first, first + stride, first + 2 * stride, ...
+	 * the nodes of the top tree are every (bottom size + 1)'th of them, between the bottom trees.
+	 */
+	private void place(int base, int levels, int first, int stride) {
+		if (levels == 1) {
+			layout[base] = (first < n) ? keys[first] : Integer.MAX_VALUE; // padding
+			return;
+		}
+		int topLevels = levels / 2;
+		int bottomLevels = levels - topLevels;
+		int bottomSize = (1 << bottomLevels) - 1;
+		place(base, topLevels, first + bottomSize * stride, (bottomSize + 1) * stride);
+		int next = base + (1 << topLevels) - 1;
+		for (int j = 0; j < 1 << topLevels; j++) {
+			place(next, bottomLevels, first + j * (bottomSize + 1) * stride, stride);
+			next += bottomSize;
+		}
+	}
+
+	/*
+	 * for a tree of levels rootDepth .. rootDepth + levels - 1, fills the tables for the split at
+	 * the top of its bottom trees, and then for the splits of both halves (the same as place),
+	 * which are made at the next recursion level
+	 */
+	private void splitLevels(int rootDepth, int levels, int level) {
+		if (levels <= 1)
+			return;
+		int topLevels = levels / 2;
+		int d = rootDepth + topLevels;
+		top[d] = (1 << topLevels) - 1;
+		bottom[d] = (1 << (levels - topLevels)) - 1;
+		topDepth[d] = rootDepth;
+		register[d] = (byte)(level + 1);
+		splitLevels(rootDepth, topLevels, level + 1);
+		splitLevels(d, levels - topLevels, level + 1);
+	}
+
+	/*
+	 * the leaf edge (0 .. 2^height - 1, from the left) at which a search for k leaves the tree,
+	 * going right at keys smaller than k (or equal, if inclusive), i.e. the number of such keys.
+	 * padding holds Integer.MAX_VALUE, so it sends every search left but one for
+	 * Integer.MAX_VALUE itself, inclusive, which countBelow answers without a search.
+	 * the step is a conditional add rather than a branch, which the search could not predict.
+	 * the positions of the path which are still needed are kept in six locals (see register)
+	 * rather than in an array by depth, which would be allocated on every search.
+	 */
+	private int exit(int k, boolean inclusive) {
+		int p0 = 0, p1 = 0, p2 = 0, p3 = 0, p4 = 0, p5 = 0;
+		int key = layout[0];
+		int i = 2 + ((key < k || (inclusive && key == k)) ? 1 : 0);
+		for (int d = 1; d < height; d++) {
+			int base;
+			switch (topRegister[d]) {
+			case 0:  base = p0; break;
+			case 1:  base = p1; break;
+			case 2:  base = p2; break;
+			case 3:  base = p3; break;
+			case 4:  base = p4; break;
+			default: base = p5; break;
+			}
+			int p = base + top[d] + (i & top[d]) * bottom[d];
+			switch (register[d]) {
+			case 1:  p1 = p; break;
+			case 2:  p2 = p; break;
+			case 3:  p3 = p; break;
+			case 4:  p4 = p; break;
+			default: p5 = p; break;
+			}
+			key = layout[p];
+			i = 2 * i + ((key < k || (inclusive && key == k)) ? 1 : 0);
+		}
+		return i - (1 << height);
+	}
+
+	/**
+	 * private int countBelow(int k, boolean inclusive)
+	 *
+	 * Returns the number of keys smaller than k (or smaller or equal, if inclusive),
+	 * walking down the layout once.
+	 */
+	private int countBelow(int k, boolean inclusive) {
+		if (n == 0)
+			return 0;
+		if (inclusive && k == Integer.MAX_VALUE)
+			return n;
+		return exit(k, inclusive);
+	}
+
+	/**
+	 * private int indexOf(int k)
+	 *
+	 * Returns the rank of k, or -1 if k is not in the index.
+	 */
+	private int indexOf(int k) {
+		int r = countBelow(k, true) - 1;
+		return (r >= 0 && keys[r] == k) ? r : -1;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the index is empty
+	 */
+	public boolean empty() {
+		return n == 0;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of keys in the index.
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the index
+	 * otherwise, returns null
+	 */
+	public String search(int k) {
+		int r = indexOf(k);
+		return (r < 0) ? null : infos[r];
+	}
+
+	/**
+	 * public boolean contains(int k)
+	 *
+	 * returns true if and only if an item with key k is in the index
+	 */
+	public boolean contains(int k) {
+		return indexOf(k) >= 0;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key, or null if the index is empty
+	 */
+	public String min() {
+		return empty() ? null : infos[0];
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key, or null if the index is empty
+	 */
+	public String max() {
+		return empty() ? null : infos[n - 1];
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * Returns the value of the i'th smallest key (null if there is no such key), in O(1)
+	 */
+	public String select(int i) {
+		if (i < 1 || i > n)
+			return null;
+		return infos[i - 1];
+	}
+
+	/**
+	 * public int rank(int k)
+	 *
+	 * Returns the number of keys which are less or equal to k
+	 */
+	public int rank(int k) {
+		return countBelow(k, true);
+	}
+
+	/**
+	 * public long less(int i)
+	 *
+	 * Returns the sum of all keys which are less or equal to i
+	 */
+	public long less(int i) {
+		return prefix[countBelow(i, true)];
+	}
+
+	/**
+	 * public int countBetween(int lo, int hi)
+	 *
+	 * Returns the number of keys k with lo <= k <= hi
+	 */
+	public int countBetween(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		return countBelow(hi, true) - countBelow(lo, false);
+	}
+
+	/**
+	 * public long sumBetween(int lo, int hi)
+	 *
+	 * Returns the sum of the keys k with lo <= k <= hi
+	 */
+	public long sumBetween(int lo, int hi) {
+		if (lo > hi)
+			return 0;
+		return prefix[countBelow(hi, true)] - prefix[countBelow(lo, false)];
+	}
+
+	/**
+	 * public int[] keysBetween(int lo, int hi)
+	 *
+	 * Returns the sorted keys k with lo <= k <= hi: two searches, and a copy of the range
+	 */
+	public int[] keysBetween(int lo, int hi) {
+		if (lo > hi)
+			return new int[0];
+		return Arrays.copyOfRange(keys, countBelow(lo, false), countBelow(hi, true));
+	}
+
+	/**
+	 * public String[] infoBetween(int lo, int hi)
+	 *
+	 * Returns the infos of the keys k with lo <= k <= hi, sorted by their keys
+	 */
+	public String[] infoBetween(int lo, int hi) {
+		if (lo > hi)
+			return new String[0];
+		return Arrays.copyOfRange(infos, countBelow(lo, false), countBelow(hi, true));
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the index
+	 */
+	public int[] keysToArray() {
+		return keys.clone();
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the index, sorted by their respective keys
+	 */
+	public String[] infoToArray() {
+		return infos.clone();
+	}
+}
@@ -0,0 +1,211 @@
+import java.util.Arrays;
+
+/**
+ * HotKeyCache
+ * A small, bounded map from keys to their infos, which AVLTree.search consults before
+ * descending the tree (see AVLTree.enableCache). With skewed lookups, the few hot keys are
+ * answered by one hash and a scan of a few adjacent slots instead of a descent of ~log2(n)
+ * dependent loads.
+ *
+ * The table is open addressing in aligned buckets of WAYS slots: a key can only sit in the
+ * bucket of its hash, so a lookup scans those WAYS keys and never more, and a removed entry
+ * just leaves an empty slot (no tombstones). A bucket is STRIDE adjacent ints of keys: a
+ * state word (which slots are in use, which were hit) followed by its keys, 32 bytes. The
+ * infos are in a parallel array at the same indices. So a lookup reads one or two cache lines
+ * of keys (two when the bucket straddles a line), and a hit one more for the info, instead
+ * of the nodes of a descent. When the bucket of a new key is full, one of its entries is
+ * evicted by CLOCK: a hit sets the referenced bit of its slot, and the scan for a victim
+ * clears the bits it passes and takes the first slot which was not referenced since the last
+ * pass (second chance); if there is none, the new key is not cached this time. Only one in
+ * ADMIT misses on a full bucket gets that far: a hot key comes back and gets in soon enough,
+ * while for the one-off keys of a long tail, writing the table on every miss would cost more
+ * than their hits could save.
+ *
+ * Only keys found in the tree are cached, and a node holds the same key and info for as long
+ * as it is in the tree (rotations and deletes move nodes, they never change their items), so
+ * the tree only has to remove a key when its node leaves the tree: in delete, and in every
+ * operation which moves all nodes away (then the whole cache is cleared).
+ */
+public class HotKeyCache {
+
+	static final int WAYS = 7; // the slots of a bucket
+	static final int ADMIT = 8; // a key missing in a full bucket replaces an entry once in this many misses
+
+	static final String MISS = new String("miss"); // what get returns for a key which is not cached (by identity)
+
+	private static final int STRIDE = WAYS + 1; // the ints of a bucket: its state, then its keys
+	private static final int REFERENCED = 8;    // the state has a bit per slot for in use, then one for referenced
+
+	private final int[] keys;     // by bucket: the state, then the keys of its slots
+	private final String[] infos; // the info of the key at the same index
+	private final int shift;
+	private int hand; // counts the misses in full buckets; its high bits say where the CLOCK scan starts
+
+	private long hits, misses, evictions, invalidations;
+
+	/*
+	 * a cache of at least capacity entries (a power of two of buckets, at least one)
+	 */
+	HotKeyCache(int capacity) {
+		if (capacity < 1 || capacity > 1 << 29)
+			throw new IllegalArgumentException("cannot cache " + capacity + " keys");
+		int buckets = Math.max(1, Integer.highestOneBit((capacity - 1) / WAYS) << 1);
+		this.keys = new int[buckets * STRIDE];
+		this.infos = new String[buckets * STRIDE];
+		this.shift = Integer.numberOfLeadingZeros(buckets - 1);
+	}
+
+	/*
+	 * the index of the state of k's bucket, its slots follow (Fibonacci hashing: the top bits
+	 * of k times 2^32 / phi, which spreads runs of consecutive keys over the table)
+	 */
+	private int bucket(int k) {
+		return (shift == 32) ? 0 : ((k * 0x9E3779B9) >>> shift) * STRIDE;
+	}
+
+	/*
+	 * returns the info of k (possibly null), or MISS if k is not cached
+	 */
+	String get(int k) {
+		int b = bucket(k);
+		int state = keys[b];
+		for (int way = 0; way < WAYS; way++) {
+			if (keys[b + 1 + way] == k && (state & (1 << way)) != 0) {
+				if ((state & (1 << (REFERENCED + way))) == 0)
+					keys[b] = state | (1 << (REFERENCED + way));
+				hits++;
+				return infos[b + 1 + way];
+			}
+		}
+		misses++;
+		return MISS;
+	}
+
+	/*
+	 * caches info under k (which is not cached), if its bucket has room. otherwise, on every
+	 * ADMIT'th call, an entry is evicted for it; if every entry of the bucket was hit since the
+	 * last scan, their bits are cleared and k is left out instead, so a stream of cold keys
+	 * cannot flush a bucket of hot ones
+	 */
+	void put(int k, String info) {
+		int b = bucket(k);
+		int state = keys[b];
+		for (int way = 0; way < WAYS; way++) {
+			if ((state & (1 << way)) == 0) {
+				keys[b] = state | (1 << way);
+				keys[b + 1 + way] = k;
+				infos[b + 1 + way] = info;
+				return;
+			}
+		}
+		if ((++hand & (ADMIT - 1)) != 0)
+			return; // not sampled
+		for (int j = 0; j < WAYS; j++) {
+			int way = ((hand / ADMIT) + j) % WAYS;
+			int bit = 1 << (REFERENCED + way);
+			if ((state & bit) == 0) {
+				keys[b] = state;
+				keys[b + 1 + way] = k;
+				infos[b + 1 + way] = info;
+				evictions++;
+				return;
+			}
+			state &= ~bit;
+		}
+		keys[b] = state; // every entry was hit since the last pass: k is not admitted this time
+	}
+
+	/*
+	 * forgets k, if it is cached
+	 */
+	void remove(int k) {
+		int b = bucket(k);
+		int state = keys[b];
+		for (int way = 0; way < WAYS; way++) {
+			if (keys[b + 1 + way] == k && (state & (1 << way)) != 0) {
+				keys[b] = state & ~(1 << way) & ~(1 << (REFERENCED + way));
+				infos[b + 1 + way] = null;
+				invalidations++;
+				return;
+			}
+		}
+	}
+
+	/*
+	 * forgets every key
+	 */
+	void clear() {
+		for (int b = 0; b < keys.length; b += STRIDE)
+			keys[b] = 0;
+		Arrays.fill(infos, null);
+	}
+
+	/**
+	 * public int capacity()
+	 *
+	 * Returns the number of slots of the cache
+	 */
+	public int capacity() {
+		return keys.length / STRIDE * WAYS;
+	}
+
+	/**
+	 * public long hits()
+	 *
+	 * Returns the number of searches answered by the cache
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * public long misses()
+	 *
+	 * Returns the number of searches which had to descend the tree
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * public double hitRate()
+	 *
+	 * Returns hits / (hits + misses), or 0 before the first search
+	 */
+	public double hitRate() {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : (double)hits / lookups;
+	}
+
+	/**
+	 * public long evictions()
+	 *
+	 * Returns the number of entries dropped to make room for another key
+	 */
+	public long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * public long invalidations()
+	 *
+	 * Returns the number of entries dropped because their key was deleted from the tree
+	 */
+	public long invalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * public void resetStats()
+	 *
+	 * sets the counters back to zero, keeping the cached keys
+	 */
+	public void resetStats() {
+		hits = misses = evictions = invalidations = 0;
+	}
+
+	public String toString() {
+		return String.format("capacity %d, hits %d, misses %d (hit rate %.3f), evictions %d, invalidations %d",
+				capacity(), hits, misses, hitRate(), evictions, invalidations);
+	}
+}
@@ -0,0 +1,486 @@
+import java.util.Arrays;
+
+/**
+ * IntAVLTree
+ * An implementation of a AVL Tree with distinct integer keys and info, with the same
+ * operations as AVLTree, whose nodes are slots in parallel arrays instead of AVLNode objects.
+ *
+ * A node is an index into key, info, left, right, parent, height, size and sum.
+ * Slot 0 is the virtual node (height -1, size 0, sum 0); slots of deleted nodes are
+ * linked into a free list (through left) and reused by the next insertions.
+ *
+ * LongAVLTree is a copy of this class for long keys; see there why, and keep the two in step.
+ */
+public class IntAVLTree {
+
+	private static final int NIL = 0; // the virtual node
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] key;
+	private String[] info;
+	private int[] left;
+	private int[] right;
+	private int[] parent; // NIL for the root
+	private int[] height;
+	private int[] size;
+	private long[] sum;
+
+	private int root = NIL;    // the root of the tree
+	private int minimum = NIL; // the node with the minimal key
+	private int maximum = NIL; // the node with the maximal key
+	private int used = 1;      // slots which were ever handed out (including the virtual node)
+	private int free = NIL;    // head of the free list
+
+	public IntAVLTree() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * creates an empty tree with room for capacity nodes before the arrays grow
+	 */
+	public IntAVLTree(int capacity) {
+		int length = Math.max(capacity, 1) + 1;
+		this.key = new int[length];
+		this.info = new String[length];
+		this.left = new int[length];
+		this.right = new int[length];
+		this.parent = new int[length];
+		this.height = new int[length];
+		this.size = new int[length];
+		this.sum = new long[length];
+		this.height[NIL] = -1;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty() {
+		return root == NIL;
+	}
+
+	/**
+	 * private int searchNode(int k)
+	 *
+	 * returns the node with key k, or NIL if there is none
+	 */
+	private int searchNode(int k) {
+		int node = root;
+		while (node != NIL && key[node] != k)
+			node = (k < key[node]) ? left[node] : right[node];
+		return node;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 */
+	public String search(int k) {
+		return info[searchNode(k)]; // info[NIL] is null
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the AVL tree.
+	 * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
+	 * returns -1 if an item with key k already exists in the tree.
+	 */
+	public int insert(int k, String i) {
+		if (empty()) {
+			root = newNode(k, i);
+			minimum = root;
+			maximum = root;
+			return 0;
+		}
+		int node = root;
+		while (true) { // find the parent of the new node
+			if (key[node] == k)
+				return -1;
+			int child = (k < key[node]) ? left[node] : right[node];
+			if (child == NIL)
+				break;
+			node = child;
+		}
+		int newNode = newNode(k, i);
+		parent[newNode] = node;
+		if (k < key[node])
+			left[node] = newNode;
+		else
+			right[node] = newNode;
+		if (k < key[minimum])
+			minimum = newNode;
+		else if (k > key[maximum])
+			maximum = newNode;
+		return updateBalanceAndFields(node);
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the binary tree, if it is there.
+	 * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+	 * returns -1 if an item with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		int node = searchNode(k);
+		if (node == NIL)
+			return -1;
+
+		if (node == minimum)
+			minimum = successor(node);
+		else if (node == maximum)
+			maximum = predecessor(node);
+
+		int physicalDelParent = parent[node]; // where the rebalancing starts
+		if (left[node] != NIL && right[node] != NIL) { // has 2 children
+			int successor = successor(node);
+			int sucParent = parent[successor];
+			replaceChild(sucParent, successor, right[successor]); // the successor has no left child
+			replaceChild(parent[node], node, successor);
+			left[successor] = left[node];
+			right[successor] = right[node];
+			parent[left[successor]] = successor;
+			parent[right[successor]] = successor;
+			height[successor] = height[node];
+			size[successor] = size[node];
+			sum[successor] = sum[node];
+			physicalDelParent = (sucParent == node) ? successor : sucParent;
+		}
+		else if (left[node] != NIL) { // has only left child
+			replaceChild(parent[node], node, left[node]);
+		}
+		else { // has only a right child or is a leaf
+			replaceChild(parent[node], node, right[node]);
+		}
+		freeNode(node);
+		if (root == NIL) {
+			minimum = NIL;
+			maximum = NIL;
+		}
+		return updateBalanceAndFields(physicalDelParent);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String min() {
+		return info[minimum];
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String max() {
+		return info[maximum];
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree,
+	 * or an empty array if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		int[] arr = new int[size()];
+		int node = minimum;
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = key[node];
+			node = successor(node);
+		}
+		return arr;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree,
+	 * sorted by their respective keys,
+	 * or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray() {
+		String[] arr = new String[size()];
+		int node = minimum;
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = info[node];
+			node = successor(node);
+		}
+		return arr;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return size[root];
+	}
+
+	/**
+	 * public long sum()
+	 *
+	 * Returns the sum of all keys in the tree.
+	 */
+	public long sum() {
+		return sum[root];
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * Returns the value of the i'th smallest key (null if there is no such key)
+	 */
+	public String select(int i) {
+		if (i < 1 || i > size())
+			return null;
+
+		int node = minimum;
+		while (size[node] < i)  // go up from minimum until subtree has at least i nodes
+			node = parent[node];
+
+		int p = size[left[node]] + 1; // at this point: p <= i
+		while (p != i) {
+			if (p < i) {
+				node = right[node];
+				p += size[left[node]] + 1;
+			}
+			else {
+				p -= size[left[node]] + 1;
+				node = left[node];
+				p += size[left[node]] + 1;
+			}
+		}
+		return info[node];
+	}
+
+	/**
+	 * public long less(int i)
+	 *
+	 * Returns the sum of all keys which are less or equal to i
+	 */
+	public long less(int i) {
+		if (empty() || i < key[minimum])
+			return 0;
+		if (i >= key[maximum])
+			return sum[root];
+
+		long result = 0;
+		int node = root;
+		while (node != NIL) {
+			if (i < key[node]) {
+				node = left[node];
+			}
+			else {
+				result += sum[left[node]] + key[node];
+				if (key[node] == i)
+					break;
+				node = right[node];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * private int newNode(int k, String i)
+	 *
+	 * returns a leaf slot holding k and i, taken from the free list if possible
+	 */
+	private int newNode(int k, String i) {
+		int node;
+		if (free != NIL) {
+			node = free;
+			free = left[node];
+		}
+		else {
+			if (used == key.length)
+				grow();
+			node = used++;
+		}
+		key[node] = k;
+		info[node] = i;
+		left[node] = NIL;
+		right[node] = NIL;
+		parent[node] = NIL;
+		height[node] = 0;
+		size[node] = 1;
+		sum[node] = k;
+		return node;
+	}
+
+	/**
+	 * private void freeNode(int node)
+	 *
+	 * puts the slot of a deleted node on the free list
+	 */
+	private void freeNode(int node) {
+		info[node] = null; // let the info be collected
+		left[node] = free;
+		free = node;
+	}
+
+	private void grow() {
+		int length = key.length + (key.length >> 1) + 1;
+		key = Arrays.copyOf(key, length);
+		info = Arrays.copyOf(info, length);
+		left = Arrays.copyOf(left, length);
+		right = Arrays.copyOf(right, length);
+		parent = Arrays.copyOf(parent, length);
+		height = Arrays.copyOf(height, length);
+		size = Arrays.copyOf(size, length);
+		sum = Arrays.copyOf(sum, length);
+	}
+
+	/**
+	 * private void replaceChild(int p, int child, int newChild)
+	 *
+	 * replaces child of p with newChild (if p is NIL, newChild becomes the root)
+	 */
+	private void replaceChild(int p, int child, int newChild) {
+		if (p == NIL)
+			root = newChild;
+		else if (left[p] == child)
+			left[p] = newChild;
+		else
+			right[p] = newChild;
+		parent[newChild] = p; // parent[NIL] is never read
+	}
+
+	private int successor(int node) {
+		if (right[node] != NIL) {
+			node = right[node];
+			while (left[node] != NIL)
+				node = left[node];
+			return node;
+		}
+		int p = parent[node];
+		while (p != NIL && node == right[p]) {
+			node = p;
+			p = parent[p];
+		}
+		return p;
+	}
+
+	private int predecessor(int node) {
+		if (left[node] != NIL) {
+			node = left[node];
+			while (right[node] != NIL)
+				node = right[node];
+			return node;
+		}
+		int p = parent[node];
+		while (p != NIL && node == left[p]) {
+			node = p;
+			p = parent[p];
+		}
+		return p;
+	}
+
+	/**
+	 * private int updateBalanceAndFields(int node)
+	 *
+	 * walks up from node, rebalancing and recalculating heights until a subtree keeps
+	 * its height, then updates only sizes and sums up to the root (see AVLTree).
+	 * returns the number of rotations
+	 */
+	private int updateBalanceAndFields(int node) {
+		int countRotations = 0;
+		while (node != NIL) {
+			int oldHeight = height[node];
+			int bf = height[left[node]] - height[right[node]];
+			if (bf > 1 || bf < -1) {
+				countRotations += rotate(node, bf);
+				node = parent[node]; // the new root of the rotated subtree
+			}
+			else {
+				updateFields(node);
+			}
+			int p = parent[node];
+			if (height[node] == oldHeight) {
+				for (; p != NIL; p = parent[p]) {
+					size[p] = size[left[p]] + size[right[p]] + 1;
+					sum[p] = key[p] + sum[left[p]] + sum[right[p]];
+				}
+				break;
+			}
+			node = p;
+		}
+		return countRotations;
+	}
+
+	private void updateFields(int node) {
+		int l = left[node];
+		int r = right[node];
+		height[node] = Math.max(height[l], height[r]) + 1;
+		size[node] = size[l] + size[r] + 1;
+		sum[node] = key[node] + sum[l] + sum[r];
+	}
+
+	/**
+	 * private int rotate(int node, int bf)
+	 *
+	 * makes the AVL rotation for a node with balance factor bf (2 or -2)
+	 * returns the number of rotations
+	 */
+	private int rotate(int node, int bf) {
+		if (bf == 2) {
+			int l = left[node];
+			if (height[left[l]] >= height[right[l]]) { // LL
+				rotateRight(node);
+				return 1;
+			}
+			rotateLeft(l); // LR
+			rotateRight(node);
+			return 2;
+		}
+		int r = right[node];
+		if (height[left[r]] > height[right[r]]) { // RL
+			rotateRight(r);
+			rotateLeft(node);
+			return 2;
+		}
+		rotateLeft(node); // RR
+		return 1;
+	}
+
+	/**
+	 * the left child of a becomes the root of a's subtree (see AVLTree.rotateRight)
+	 */
+	private void rotateRight(int a) {
+		int p = parent[a];
+		int b = left[a];
+		int d = right[b];
+		replaceChild(p, a, b);
+		left[a] = d;
+		parent[d] = a;
+		right[b] = a;
+		parent[a] = b;
+		updateFields(a);
+		updateFields(b);
+	}
+
+	/**
+	 * the right child of a becomes the root of a's subtree (see AVLTree.rotateLeft)
+	 */
+	private void rotateLeft(int a) {
+		int p = parent[a];
+		int b = right[a];
+		int d = left[b];
+		replaceChild(p, a, b);
+		right[a] = d;
+		parent[d] = a;
+		left[b] = a;
+		parent[a] = b;
+		updateFields(a);
+		updateFields(b);
+	}
+}
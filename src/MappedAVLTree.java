@@ -0,0 +1,819 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * MappedAVLTree
+ * An implementation of a AVL Tree with distinct integer keys and info, with the operations
+ * of AVLTree, whose nodes live off-heap in a memory mapped file.
+ *
+ * Every node is a fixed width record addressed by its slot number (like IntAVLTree):
+ *
+ *   offset  0: key          4: left      8: right     12: parent
+ *          16: height      20: size     24: sum (long)                32: info offset (long, -1 for null)
+ *
+ * Slot 0 holds the header (magic, version, root, minimum, maximum, used slots, free list
+ * and the end of the info file) and slot 1 is the virtual node. The file is mapped in
+ * chunks of NODE_CHUNK records, so it is not limited to the 2GB of a single mapping.
+ * The infos are appended, as a length and UTF-8 bytes, to a second mapped file
+ * (file name + ".info"); the space of deleted infos is not reused.
+ *
+ * Changes reach the file through the operating system's page cache, so the file holds a
+ * half done operation whenever the process dies in one. To go back to a consistent tree,
+ * the first change of a record (the header included) after a force() copies the record as
+ * it was to an undo journal (file name + ".undo") before it is changed; open() writes the
+ * journaled records back and so returns the tree of the last force(), whatever the process
+ * was doing when it was killed. The header fields are written through to slot 0 at the end
+ * of every operation, so a clean force() has nothing left to add. force() flushes the
+ * journal, then both files, and then empties the journal: an operating system crash or
+ * power loss during a force() also comes back to the last completed one. The journal itself
+ * is only flushed by force(), so a crash of the operating system (not of the process)
+ * between two force() calls, after it wrote back some records but not their copies,
+ * can still leave a damaged tree.
+ */
+public class MappedAVLTree implements Closeable {
+
+	private static final int MAGIC = 0x4156_4C4D; // "AVLM"
+	private static final int VERSION = 2; // 2: sums are longs
+
+	private static final int RECORD = 40;          // bytes per node
+	private static final int NODE_CHUNK_SHIFT = 20; // 2^20 records per mapped chunk
+	private static final int NODE_CHUNK = 1 << NODE_CHUNK_SHIFT;
+	private static final long INFO_CHUNK = 1 << 24; // bytes per mapped chunk of the info file
+	private static final int UNDO_CHUNK = 1 << 16; // journal entries per mapped chunk of the undo file
+
+	private static final int KEY = 0, LEFT = 4, RIGHT = 8, PARENT = 12, HEIGHT = 16, SIZE = 20, SUM = 24, INFO = 32;
+	private static final int H_MAGIC = 0, H_VERSION = 4, H_ROOT = 8, H_MINIMUM = 12, H_MAXIMUM = 16,
+			H_USED = 20, H_FREE = 24, H_INFO_END = 28;
+
+	private static final int NIL = 1; // the virtual node
+
+	// an undo journal entry is the slot number and the old record; entry 0 is the journal's header
+	private static final int UNDO_MAGIC = 0x4156_4C55; // "AVLU"
+	private static final int UNDO_ENTRY = 4 + RECORD;
+	private static final int U_MAGIC = 0, U_COUNT = 4;
+
+	private final RandomAccessFile nodeFile;
+	private final RandomAccessFile infoFile;
+	private final File undoPath;
+	private RandomAccessFile undoFile; // opened by openJournal, once the file is known to be a tree
+	private final List<MappedByteBuffer> nodeChunks = new ArrayList<MappedByteBuffer>();
+	private final List<MappedByteBuffer> infoChunks = new ArrayList<MappedByteBuffer>();
+	private final List<MappedByteBuffer> undoChunks = new ArrayList<MappedByteBuffer>();
+
+	private int root;    // the root of the tree
+	private int minimum; // the node with the minimal key
+	private int maximum; // the node with the maximal key
+	private int used;    // slots which were ever handed out (including the header and the virtual node)
+	private int free;    // head of the free list, linked through left
+	private long infoEnd; // end of the used part of the info file
+
+	private int journaled;     // the number of entries in the undo journal
+	private int forcedUsed;    // used at the last force(): the later slots were not part of that tree
+	private final BitSet saved = new BitSet(); // the slots journaled since the last force()
+
+	private MappedAVLTree(File file) throws IOException {
+		this.nodeFile = new RandomAccessFile(file, "rw");
+		this.infoFile = new RandomAccessFile(file.getPath() + ".info", "rw");
+		this.undoPath = new File(file.getPath() + ".undo");
+	}
+
+	/**
+	 * public static MappedAVLTree open(File file)
+	 *
+	 * maps the tree stored in file (and file + ".info"), or creates an empty tree
+	 * if the file does not exist or is empty. if the tree was not closed, the changes
+	 * after its last force() are rolled back (see the undo journal, file + ".undo").
+	 */
+	public static MappedAVLTree open(File file) throws IOException {
+		MappedAVLTree tree = new MappedAVLTree(file);
+		try {
+			long length = tree.nodeFile.length();
+			if (length == 0) {
+				tree.openJournal();
+				tree.mapNodeChunk();
+				tree.root = NIL;
+				tree.minimum = NIL;
+				tree.maximum = NIL;
+				tree.used = NIL + 1;
+				tree.free = NIL;
+				tree.infoEnd = 0;
+				tree.setKey(NIL, 0);
+				tree.setHeight(NIL, -1);
+				tree.setSize(NIL, 0);
+				tree.setSum(NIL, 0);
+				tree.setInfoOffset(NIL, -1);
+				tree.writeHeader();
+				tree.force();
+			}
+			else {
+				tree.checkMagic(); // before mapping, which would extend a foreign file
+				tree.openJournal();
+				long chunkBytes = (long)NODE_CHUNK * RECORD;
+				for (long mapped = 0; mapped < length; mapped += chunkBytes)
+					tree.mapNodeChunk();
+				tree.rollBack();
+				tree.readHeader();
+				tree.forcedUsed = tree.used;
+				for (long mapped = 0; mapped < tree.infoEnd; mapped += INFO_CHUNK)
+					tree.mapInfoChunk();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			tree.nodeChunks.clear(); // do not write a header into a file which could not be read
+			tree.undoChunks.clear();
+			tree.close();
+			throw e;
+		}
+		return tree;
+	}
+
+	/**
+	 * public void force()
+	 *
+	 * forces all changes of the tree to the storage device; the tree as it is now is what
+	 * open() returns after a crash, until the next force()
+	 */
+	public void force() {
+		for (MappedByteBuffer chunk : undoChunks) // first the copies, in case the records are written back only in part
+			chunk.force();
+		for (MappedByteBuffer chunk : infoChunks)
+			chunk.force();
+		for (MappedByteBuffer chunk : nodeChunks)
+			chunk.force();
+		journaled = 0;
+		undoChunks.get(0).putInt(U_COUNT, 0);
+		undoChunks.get(0).force();
+		saved.clear();
+		forcedUsed = used;
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * forces the tree to the storage device and closes the files.
+	 * the tree must not be used afterwards.
+	 */
+	public void close() throws IOException {
+		try {
+			if (!nodeChunks.isEmpty())
+				force();
+		}
+		finally {
+			nodeChunks.clear();
+			infoChunks.clear();
+			undoChunks.clear();
+			try {
+				nodeFile.close();
+				infoFile.close();
+			}
+			finally {
+				if (undoFile != null)
+					undoFile.close();
+			}
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty() {
+		return root == NIL;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 */
+	public String search(int k) {
+		int node = searchNode(k);
+		return (node == NIL) ? null : info(node);
+	}
+
+	private int searchNode(int k) {
+		int node = root;
+		while (node != NIL) {
+			int key = key(node);
+			if (key == k)
+				return node;
+			node = (k < key) ? left(node) : right(node);
+		}
+		return NIL;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the AVL tree.
+	 * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
+	 * returns -1 if an item with key k already exists in the tree.
+	 */
+	public int insert(int k, String i) {
+		if (empty()) {
+			root = newNode(k, i);
+			minimum = root;
+			maximum = root;
+			writeHeader();
+			return 0;
+		}
+		int node = root;
+		while (true) { // find the parent of the new node
+			int key = key(node);
+			if (key == k)
+				return -1;
+			int child = (k < key) ? left(node) : right(node);
+			if (child == NIL)
+				break;
+			node = child;
+		}
+		int newNode = newNode(k, i);
+		setParent(newNode, node);
+		if (k < key(node))
+			setLeft(node, newNode);
+		else
+			setRight(node, newNode);
+		if (k < key(minimum))
+			minimum = newNode;
+		else if (k > key(maximum))
+			maximum = newNode;
+		int count = updateBalanceAndFields(node);
+		writeHeader();
+		return count;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the binary tree, if it is there.
+	 * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+	 * returns -1 if an item with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		int node = searchNode(k);
+		if (node == NIL)
+			return -1;
+
+		if (node == minimum)
+			minimum = successor(node);
+		else if (node == maximum)
+			maximum = predecessor(node);
+
+		int physicalDelParent = parent(node);
+		int l = left(node);
+		int r = right(node);
+		if (l != NIL && r != NIL) { // has 2 children
+			int successor = successor(node);
+			int sucParent = parent(successor);
+			replaceChild(sucParent, successor, right(successor)); // the successor has no left child
+			replaceChild(parent(node), node, successor);
+			setLeft(successor, left(node));
+			setRight(successor, right(node));
+			setParent(left(successor), successor);
+			setParent(right(successor), successor);
+			setHeight(successor, height(node));
+			setSize(successor, size(node));
+			setSum(successor, sum(node));
+			physicalDelParent = (sucParent == node) ? successor : sucParent;
+		}
+		else if (l != NIL) {
+			replaceChild(parent(node), node, l);
+		}
+		else {
+			replaceChild(parent(node), node, r);
+		}
+		freeNode(node);
+		if (root == NIL) {
+			minimum = NIL;
+			maximum = NIL;
+		}
+		int count = updateBalanceAndFields(physicalDelParent);
+		writeHeader();
+		return count;
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String min() {
+		return empty() ? null : info(minimum);
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String max() {
+		return empty() ? null : info(maximum);
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree,
+	 * or an empty array if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		int[] arr = new int[size()];
+		int node = minimum;
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = key(node);
+			node = successor(node);
+		}
+		return arr;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree,
+	 * sorted by their respective keys,
+	 * or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray() {
+		String[] arr = new String[size()];
+		int node = minimum;
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = info(node);
+			node = successor(node);
+		}
+		return arr;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * public long sum()
+	 *
+	 * Returns the sum of all keys in the tree.
+	 */
+	public long sum() {
+		return sum(root);
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * Returns the value of the i'th smallest key (null if there is no such key)
+	 */
+	public String select(int i) {
+		if (i < 1 || i > size())
+			return null;
+
+		int node = minimum;
+		while (size(node) < i)  // go up from minimum until subtree has at least i nodes
+			node = parent(node);
+
+		int p = size(left(node)) + 1; // at this point: p <= i
+		while (p != i) {
+			if (p < i) {
+				node = right(node);
+				p += size(left(node)) + 1;
+			}
+			else {
+				p -= size(left(node)) + 1;
+				node = left(node);
+				p += size(left(node)) + 1;
+			}
+		}
+		return info(node);
+	}
+
+	/**
+	 * public long less(int i)
+	 *
+	 * Returns the sum of all keys which are less or equal to i
+	 */
+	public long less(int i) {
+		if (empty() || i < key(minimum))
+			return 0;
+		if (i >= key(maximum))
+			return sum(root);
+
+		long result = 0;
+		int node = root;
+		while (node != NIL) {
+			int key = key(node);
+			if (i < key) {
+				node = left(node);
+			}
+			else {
+				result += sum(left(node)) + key;
+				if (key == i)
+					break;
+				node = right(node);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * the tree algorithms, as in IntAVLTree
+	 */
+
+	private int newNode(int k, String i) {
+		int node;
+		if (free != NIL) {
+			node = free;
+			free = left(node);
+		}
+		else {
+			if (used == nodeChunks.size() * NODE_CHUNK)
+				mapNodeChunk();
+			node = used++;
+		}
+		setKey(node, k);
+		setLeft(node, NIL);
+		setRight(node, NIL);
+		setParent(node, NIL);
+		setHeight(node, 0);
+		setSize(node, 1);
+		setSum(node, k);
+		setInfoOffset(node, appendInfo(i));
+		return node;
+	}
+
+	private void freeNode(int node) {
+		setLeft(node, free);
+		free = node;
+	}
+
+	private void replaceChild(int p, int child, int newChild) {
+		if (p == NIL)
+			root = newChild;
+		else if (left(p) == child)
+			setLeft(p, newChild);
+		else
+			setRight(p, newChild);
+		if (newChild != NIL)
+			setParent(newChild, p);
+	}
+
+	private int successor(int node) {
+		int r = right(node);
+		if (r != NIL) {
+			node = r;
+			while (left(node) != NIL)
+				node = left(node);
+			return node;
+		}
+		int p = parent(node);
+		while (p != NIL && node == right(p)) {
+			node = p;
+			p = parent(p);
+		}
+		return p;
+	}
+
+	private int predecessor(int node) {
+		int l = left(node);
+		if (l != NIL) {
+			node = l;
+			while (right(node) != NIL)
+				node = right(node);
+			return node;
+		}
+		int p = parent(node);
+		while (p != NIL && node == left(p)) {
+			node = p;
+			p = parent(p);
+		}
+		return p;
+	}
+
+	private int updateBalanceAndFields(int node) {
+		int countRotations = 0;
+		while (node != NIL) {
+			int oldHeight = height(node);
+			int bf = height(left(node)) - height(right(node));
+			if (bf > 1 || bf < -1) {
+				countRotations += rotate(node, bf);
+				node = parent(node); // the new root of the rotated subtree
+			}
+			else {
+				updateFields(node);
+			}
+			int p = parent(node);
+			if (height(node) == oldHeight) {
+				for (; p != NIL; p = parent(p)) {
+					setSize(p, size(left(p)) + size(right(p)) + 1);
+					setSum(p, key(p) + sum(left(p)) + sum(right(p)));
+				}
+				break;
+			}
+			node = p;
+		}
+		return countRotations;
+	}
+
+	private void updateFields(int node) {
+		int l = left(node);
+		int r = right(node);
+		setHeight(node, Math.max(height(l), height(r)) + 1);
+		setSize(node, size(l) + size(r) + 1);
+		setSum(node, key(node) + sum(l) + sum(r));
+	}
+
+	private int rotate(int node, int bf) {
+		if (bf == 2) {
+			int l = left(node);
+			if (height(left(l)) >= height(right(l))) { // LL
+				rotateRight(node);
+				return 1;
+			}
+			rotateLeft(l); // LR
+			rotateRight(node);
+			return 2;
+		}
+		int r = right(node);
+		if (height(left(r)) > height(right(r))) { // RL
+			rotateRight(r);
+			rotateLeft(node);
+			return 2;
+		}
+		rotateLeft(node); // RR
+		return 1;
+	}
+
+	private void rotateRight(int a) {
+		int p = parent(a);
+		int b = left(a);
+		int d = right(b);
+		replaceChild(p, a, b);
+		setLeft(a, d);
+		if (d != NIL)
+			setParent(d, a);
+		setRight(b, a);
+		setParent(a, b);
+		updateFields(a);
+		updateFields(b);
+	}
+
+	private void rotateLeft(int a) {
+		int p = parent(a);
+		int b = right(a);
+		int d = left(b);
+		replaceChild(p, a, b);
+		setRight(a, d);
+		if (d != NIL)
+			setParent(d, a);
+		setLeft(b, a);
+		setParent(a, b);
+		updateFields(a);
+		updateFields(b);
+	}
+
+	/*
+	 * access to the node records
+	 */
+
+	private int get(int node, int field) {
+		return nodeChunks.get(node >>> NODE_CHUNK_SHIFT).getInt((node & (NODE_CHUNK - 1)) * RECORD + field);
+	}
+
+	private void set(int node, int field, int value) {
+		save(node);
+		nodeChunks.get(node >>> NODE_CHUNK_SHIFT).putInt((node & (NODE_CHUNK - 1)) * RECORD + field, value);
+	}
+
+	private int key(int node)    { return get(node, KEY); }
+	private int left(int node)   { return get(node, LEFT); }
+	private int right(int node)  { return get(node, RIGHT); }
+	private int parent(int node) { return get(node, PARENT); }
+	private int height(int node) { return get(node, HEIGHT); }
+	private int size(int node)   { return get(node, SIZE); }
+	private long sum(int node) {
+		return nodeChunks.get(node >>> NODE_CHUNK_SHIFT).getLong((node & (NODE_CHUNK - 1)) * RECORD + SUM);
+	}
+
+	private void setKey(int node, int key)       { set(node, KEY, key); }
+	private void setLeft(int node, int left)     { set(node, LEFT, left); }
+	private void setRight(int node, int right)   { set(node, RIGHT, right); }
+	private void setParent(int node, int parent) { set(node, PARENT, parent); }
+	private void setHeight(int node, int height) { set(node, HEIGHT, height); }
+	private void setSize(int node, int size)     { set(node, SIZE, size); }
+	private void setSum(int node, long sum) {
+		save(node);
+		nodeChunks.get(node >>> NODE_CHUNK_SHIFT).putLong((node & (NODE_CHUNK - 1)) * RECORD + SUM, sum);
+	}
+
+	private long infoOffset(int node) {
+		return nodeChunks.get(node >>> NODE_CHUNK_SHIFT).getLong((node & (NODE_CHUNK - 1)) * RECORD + INFO);
+	}
+
+	private void setInfoOffset(int node, long offset) {
+		save(node);
+		nodeChunks.get(node >>> NODE_CHUNK_SHIFT).putLong((node & (NODE_CHUNK - 1)) * RECORD + INFO, offset);
+	}
+
+	/**
+	 * private String info(int node)
+	 *
+	 * reads the info of node from the info file
+	 */
+	private String info(int node) {
+		long offset = infoOffset(node);
+		if (offset < 0)
+			return null;
+		ByteBuffer chunk = infoChunks.get((int)(offset / INFO_CHUNK)).duplicate();
+		chunk.order(ByteOrder.LITTLE_ENDIAN);
+		int position = (int)(offset % INFO_CHUNK);
+		byte[] bytes = new byte[chunk.getInt(position)];
+		chunk.position(position + 4);
+		chunk.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * private long appendInfo(String i)
+	 *
+	 * writes i at the end of the info file and returns its offset (-1 for null).
+	 * an info never crosses the end of a mapped chunk.
+	 */
+	private long appendInfo(String i) {
+		if (i == null)
+			return -1;
+		byte[] bytes = i.getBytes(StandardCharsets.UTF_8);
+		int length = 4 + bytes.length;
+		if (length > INFO_CHUNK)
+			throw new IllegalArgumentException("info longer than " + (INFO_CHUNK - 4) + " bytes");
+		if (infoEnd % INFO_CHUNK + length > INFO_CHUNK)
+			infoEnd += INFO_CHUNK - infoEnd % INFO_CHUNK; // skip to the next chunk
+		while (infoEnd + length > infoChunks.size() * INFO_CHUNK)
+			mapInfoChunk();
+		long offset = infoEnd;
+		ByteBuffer chunk = infoChunks.get((int)(offset / INFO_CHUNK)).duplicate();
+		chunk.order(ByteOrder.LITTLE_ENDIAN);
+		chunk.position((int)(offset % INFO_CHUNK));
+		chunk.putInt(bytes.length);
+		chunk.put(bytes);
+		infoEnd += length;
+		return offset;
+	}
+
+	private void checkMagic() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		nodeFile.getChannel().read(header, 0);
+		if (header.position() < 8 || header.getInt(H_MAGIC) != MAGIC)
+			throw new IOException("not a MappedAVLTree file");
+	}
+
+	private void readHeader() throws IOException {
+		MappedByteBuffer header = nodeChunks.get(0);
+		if (header.getInt(H_VERSION) != VERSION)
+			throw new IOException("unsupported MappedAVLTree version " + header.getInt(H_VERSION));
+		root = header.getInt(H_ROOT);
+		minimum = header.getInt(H_MINIMUM);
+		maximum = header.getInt(H_MAXIMUM);
+		used = header.getInt(H_USED);
+		free = header.getInt(H_FREE);
+		infoEnd = header.getLong(H_INFO_END);
+	}
+
+	/*
+	 * writes the header fields through to slot 0 (journaled like any other record)
+	 */
+	private void writeHeader() {
+		save(0);
+		MappedByteBuffer header = nodeChunks.get(0);
+		header.putInt(H_MAGIC, MAGIC);
+		header.putInt(H_VERSION, VERSION);
+		header.putInt(H_ROOT, root);
+		header.putInt(H_MINIMUM, minimum);
+		header.putInt(H_MAXIMUM, maximum);
+		header.putInt(H_USED, used);
+		header.putInt(H_FREE, free);
+		header.putLong(H_INFO_END, infoEnd);
+	}
+
+	/*
+	 * the undo journal
+	 */
+
+	/**
+	 * private void save(int node)
+	 *
+	 * copies the record of node to the undo journal, if it is the first change of the record
+	 * since the last force(). slots handed out since then need no copy: the tree of the last
+	 * force() does not use them. the entry is complete before the count includes it, and the
+	 * record is changed only after that.
+	 */
+	private void save(int node) {
+		if (node >= forcedUsed || saved.get(node))
+			return;
+		int entry = journaled + 1; // entry 0 is the header
+		if (entry == undoChunks.size() * UNDO_CHUNK)
+			mapUndoChunk();
+		ByteBuffer chunk = undoChunks.get(entry / UNDO_CHUNK);
+		int position = (entry % UNDO_CHUNK) * UNDO_ENTRY;
+		chunk.putInt(position, node);
+		ByteBuffer record = nodeChunks.get(node >>> NODE_CHUNK_SHIFT).duplicate();
+		record.position((node & (NODE_CHUNK - 1)) * RECORD).limit((node & (NODE_CHUNK - 1)) * RECORD + RECORD);
+		chunk.duplicate().position(position + 4).put(record);
+		journaled++;
+		undoChunks.get(0).putInt(U_COUNT, journaled);
+		saved.set(node);
+	}
+
+	/**
+	 * private void openJournal()
+	 *
+	 * maps the undo journal, creating an empty one if there is none
+	 */
+	private void openJournal() throws IOException {
+		undoFile = new RandomAccessFile(undoPath, "rw");
+		long length = undoFile.length();
+		long chunkBytes = (long)UNDO_CHUNK * UNDO_ENTRY;
+		mapUndoChunk();
+		if (length == 0) {
+			undoChunks.get(0).putInt(U_MAGIC, UNDO_MAGIC);
+			undoChunks.get(0).putInt(U_COUNT, 0);
+			return;
+		}
+		if (undoChunks.get(0).getInt(U_MAGIC) != UNDO_MAGIC)
+			throw new IOException("not a MappedAVLTree undo journal");
+		for (long mapped = chunkBytes; mapped < length; mapped += chunkBytes)
+			mapUndoChunk();
+		journaled = undoChunks.get(0).getInt(U_COUNT);
+		if (journaled < 0 || journaled >= (long)undoChunks.size() * UNDO_CHUNK)
+			throw new IOException("damaged MappedAVLTree undo journal");
+	}
+
+	/**
+	 * private void rollBack()
+	 *
+	 * writes the records of the undo journal back (the oldest copy of a slot is the only one,
+	 * so the order does not matter), makes that durable and empties the journal
+	 */
+	private void rollBack() throws IOException {
+		if (journaled == 0)
+			return;
+		for (int entry = 1; entry <= journaled; entry++) {
+			ByteBuffer chunk = undoChunks.get(entry / UNDO_CHUNK);
+			int position = (entry % UNDO_CHUNK) * UNDO_ENTRY;
+			int node = chunk.getInt(position);
+			if (node < 0 || node >= (long)nodeChunks.size() * NODE_CHUNK)
+				throw new IOException("damaged MappedAVLTree undo journal");
+			ByteBuffer old = chunk.duplicate(); // (a duplicate is big endian, but only copies bytes here)
+			old.position(position + 4).limit(position + 4 + RECORD);
+			ByteBuffer record = nodeChunks.get(node >>> NODE_CHUNK_SHIFT).duplicate();
+			record.position((node & (NODE_CHUNK - 1)) * RECORD);
+			record.put(old);
+		}
+		for (MappedByteBuffer chunk : nodeChunks)
+			chunk.force();
+		journaled = 0;
+		undoChunks.get(0).putInt(U_COUNT, 0);
+		undoChunks.get(0).force();
+	}
+
+	private void mapUndoChunk() {
+		long size = (long)UNDO_CHUNK * UNDO_ENTRY;
+		undoChunks.add(map(undoFile.getChannel(), undoChunks.size() * size, size));
+	}
+
+	private void mapNodeChunk() {
+		long size = (long)NODE_CHUNK * RECORD;
+		nodeChunks.add(map(nodeFile.getChannel(), nodeChunks.size() * size, size));
+	}
+
+	private void mapInfoChunk() {
+		infoChunks.add(map(infoFile.getChannel(), infoChunks.size() * INFO_CHUNK, INFO_CHUNK));
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long position, long size) {
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
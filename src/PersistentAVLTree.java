@@ -0,0 +1,348 @@
+/**
+ * PersistentAVLTree
+ * An immutable AVL Tree with distinct integer keys and info.
+ *
+ * insert and delete do not change the tree they are called on: they copy the O(log n) nodes
+ * on the path to the key and return a new version which shares all other nodes with the old
+ * one. Keeping a version is therefore a free snapshot, and it can be read by any number of
+ * threads while other threads derive new versions from it, without any locking.
+ *
+ * Nodes have no parent pointers (a node is shared by many versions, each with its own
+ * parents), so min, max and select descend from the root instead of climbing from the minimum.
+ */
+public class PersistentAVLTree {
+
+	private final Node root; // null for the empty tree
+
+	public PersistentAVLTree() {
+		this(null);
+	}
+
+	private PersistentAVLTree(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * public static PersistentAVLTree fromSorted(int[] keys, String[] infos)
+	 *
+	 * builds a perfectly balanced tree of the items (keys[j], infos[j]) in O(n)
+	 * (see AVLTree.fromSorted).
+	 * throws IllegalArgumentException if the keys are not strictly increasing
+	 * or if the arrays differ in length.
+	 */
+	public static PersistentAVLTree fromSorted(int[] keys, String[] infos) {
+		if (keys.length != infos.length)
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + infos.length + " infos");
+		for (int j = 1; j < keys.length; j++) {
+			if (keys[j - 1] >= keys[j])
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + j);
+		}
+		return new PersistentAVLTree(buildBalanced(keys, infos, 0, keys.length));
+	}
+
+	private static Node buildBalanced(int[] keys, String[] infos, int lo, int hi) {
+		if (lo >= hi)
+			return null;
+		int mid = (lo + hi) >>> 1;
+		return new Node(keys[mid], infos[mid], buildBalanced(keys, infos, lo, mid), buildBalanced(keys, infos, mid + 1, hi));
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty() {
+		return root == null;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 */
+	public String search(int k) {
+		Node node = searchNode(k);
+		return (node == null) ? null : node.info;
+	}
+
+	private Node searchNode(int k) {
+		Node node = root;
+		while (node != null && node.key != k)
+			node = (k < node.key) ? node.left : node.right;
+		return node;
+	}
+
+	/**
+	 * public boolean contains(int k)
+	 *
+	 * returns true if and only if an item with key k is in the tree
+	 * (search cannot tell an item with null info from a missing one)
+	 */
+	public boolean contains(int k) {
+		return searchNode(k) != null;
+	}
+
+	/**
+	 * public PersistentAVLTree insert(int k, String i)
+	 *
+	 * returns a tree with the items of this tree and the item (k, i),
+	 * or this tree if an item with key k already exists in it.
+	 */
+	public PersistentAVLTree insert(int k, String i) {
+		if (contains(k))
+			return this;
+		return new PersistentAVLTree(insert(root, k, i));
+	}
+
+	/**
+	 * public PersistentAVLTree delete(int k)
+	 *
+	 * returns a tree with the items of this tree but the item with key k,
+	 * or this tree if an item with key k was not found in it.
+	 */
+	public PersistentAVLTree delete(int k) {
+		if (!contains(k))
+			return this;
+		return new PersistentAVLTree(delete(root, k));
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String min() {
+		if (empty())
+			return null;
+		Node node = root;
+		while (node.left != null)
+			node = node.left;
+		return node.info;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String max() {
+		if (empty())
+			return null;
+		Node node = root;
+		while (node.right != null)
+			node = node.right;
+		return node.info;
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree,
+	 * or an empty array if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		int[] arr = new int[size()];
+		keysToArray(root, arr, 0);
+		return arr;
+	}
+
+	private static int keysToArray(Node node, int[] arr, int i) {
+		if (node == null)
+			return i;
+		i = keysToArray(node.left, arr, i);
+		arr[i++] = node.key;
+		return keysToArray(node.right, arr, i);
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree,
+	 * sorted by their respective keys,
+	 * or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray() {
+		String[] arr = new String[size()];
+		infoToArray(root, arr, 0);
+		return arr;
+	}
+
+	private static int infoToArray(Node node, String[] arr, int i) {
+		if (node == null)
+			return i;
+		i = infoToArray(node.left, arr, i);
+		arr[i++] = node.info;
+		return infoToArray(node.right, arr, i);
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * public long sum()
+	 *
+	 * Returns the sum of all keys in the tree.
+	 */
+	public long sum() {
+		return sum(root);
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * Returns the value of the i'th smallest key (null if there is no such key)
+	 */
+	public String select(int i) {
+		if (i < 1 || i > size())
+			return null;
+		Node node = root;
+		while (true) {
+			int p = size(node.left) + 1; // the rank of node in its subtree
+			if (i == p)
+				return node.info;
+			if (i < p) {
+				node = node.left;
+			}
+			else {
+				i -= p;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * public long less(int i)
+	 *
+	 * Returns the sum of all keys which are less or equal to i
+	 */
+	public long less(int i) {
+		long result = 0;
+		Node node = root;
+		while (node != null) {
+			if (i < node.key) {
+				node = node.left;
+			}
+			else {
+				result += sum(node.left) + node.key;
+				if (node.key == i)
+					break;
+				node = node.right;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * private static Node insert(Node node, int k, String i)
+	 *
+	 * returns a copy of the subtree of node with the item (k, i)
+	 *
+	 * @pre k is not in the subtree
+	 */
+	private static Node insert(Node node, int k, String i) {
+		if (node == null)
+			return new Node(k, i, null, null);
+		if (k < node.key)
+			return balance(node.key, node.info, insert(node.left, k, i), node.right);
+		return balance(node.key, node.info, node.left, insert(node.right, k, i));
+	}
+
+	/**
+	 * private static Node delete(Node node, int k)
+	 *
+	 * returns a copy of the subtree of node without the item with key k
+	 *
+	 * @pre k is in the subtree
+	 */
+	private static Node delete(Node node, int k) {
+		if (k < node.key)
+			return balance(node.key, node.info, delete(node.left, k), node.right);
+		if (k > node.key)
+			return balance(node.key, node.info, node.left, delete(node.right, k));
+		if (node.left == null)
+			return node.right;
+		if (node.right == null)
+			return node.left;
+		Node successor = node.right;
+		while (successor.left != null)
+			successor = successor.left;
+		return balance(successor.key, successor.info, node.left, deleteMin(node.right));
+	}
+
+	private static Node deleteMin(Node node) {
+		if (node.left == null)
+			return node.right;
+		return balance(node.key, node.info, deleteMin(node.left), node.right);
+	}
+
+	/**
+	 * private static Node balance(int k, String i, Node left, Node right)
+	 *
+	 * returns a new node with the item (k, i) and the given subtrees, whose heights differ
+	 * by at most 2, rotated like AVLTree.rotate if they differ by 2.
+	 * the rotations create new nodes instead of changing left or right.
+	 */
+	private static Node balance(int k, String i, Node left, Node right) {
+		int bf = height(left) - height(right);
+		if (bf > 1) {
+			if (height(left.left) >= height(left.right)) // LL
+				return new Node(left.key, left.info, left.left, new Node(k, i, left.right, right));
+			Node lr = left.right; // LR
+			return new Node(lr.key, lr.info, new Node(left.key, left.info, left.left, lr.left), new Node(k, i, lr.right, right));
+		}
+		if (bf < -1) {
+			if (height(right.right) >= height(right.left)) // RR
+				return new Node(right.key, right.info, new Node(k, i, left, right.left), right.right);
+			Node rl = right.left; // RL
+			return new Node(rl.key, rl.info, new Node(k, i, left, rl.left), new Node(right.key, right.info, rl.right, right.right));
+		}
+		return new Node(k, i, left, right);
+	}
+
+	private static int height(Node node) {
+		return (node == null) ? -1 : node.height;
+	}
+
+	private static int size(Node node) {
+		return (node == null) ? 0 : node.size;
+	}
+
+	private static long sum(Node node) {
+		return (node == null) ? 0 : node.sum;
+	}
+
+	/**
+	 * private static final class Node
+	 *
+	 * an immutable node; height, size and sum are computed from the children once.
+	 */
+	private static final class Node {
+		final int key;
+		final String info;
+		final Node left;
+		final Node right;
+		final int height;
+		final int size;
+		final long sum;
+
+		Node(int key, String info, Node left, Node right) {
+			this.key = key;
+			this.info = info;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = size(left) + size(right) + 1;
+			this.sum = key + sum(left) + sum(right);
+		}
+	}
+}
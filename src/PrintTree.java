@@ -109,7 +109,7 @@ class BTreePrinter {
         List<AVLTree.IAVLNode> newNodes = new ArrayList<AVLTree.IAVLNode>();
         for (AVLTree.IAVLNode node : nodes) {
             if (node != null) {
-                System.out.print(node.getKey() == -1 ? "*" : Integer.toString(node.getKey()));
+                System.out.print(!node.isRealNode() ? "*" : Integer.toString(node.getKey()));
                 newNodes.add(node.getLeft());
                 newNodes.add(node.getRight());
             } else {
@@ -160,7 +160,7 @@ class BTreePrinter {
         if (node == null)
             return 0;
 
-        return Math.max(BTreePrinter.maxLevel(node.getLeft()), BTreePrinter.maxLevel(node.getRight())) + 1;
+        return node.getHeight() + 2; // the levels of real nodes, and one of virtual leaves below them
     }
 
     private static <T> boolean isAllElementsNull(List<T> list) {